@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+/**
+ * Carries the settings of a single <code>JMerkle.alter</code> invocation down
+ * through the tree's <code>alterInternal</code> recursion.
+ */
+/*default*/ final class AlterContext {
+
+    /*default*/ static final AlterContext SEQUENTIAL = new AlterContext(Integer.MAX_VALUE);
+
+    /*default*/ static final AlterContext DEFERRED = new AlterContext(Integer.MAX_VALUE, true, false);
+
+    /*default*/ static final AlterContext PERSISTENT = new AlterContext(Integer.MAX_VALUE, false, true);
+
+    /*
+     * The minimum number of alterations that are split into fork/join tasks
+     * (per child of a Branch); below it, alterations are applied by the
+     * current thread. Only reached when running within a ForkJoinPool.
+     */
+    /*default*/ final int forkThreshold;
+
+    /*
+     * Whether the altered branches are left unhashed (their hashVals null)
+     * until next needed; see JMerkle.hashed(JMerkle).
+     */
+    /*default*/ final boolean defersHashing;
+
+    /*
+     * Whether the altered nodes are copied rather than altered in place,
+     * leaving the tree altered intact; see JMerkle.alterPersistent.
+     */
+    /*default*/ final boolean copiesPaths;
+
+    /*default*/ AlterContext(int forkThreshold) {
+        this(forkThreshold, false, false);
+    }
+
+    /*default*/ AlterContext(int forkThreshold, boolean defersHashing, boolean copiesPaths) {
+        if (forkThreshold < 1)
+            throw new IllegalArgumentException("forkThreshold must be positive: " + forkThreshold);
+        this.forkThreshold = forkThreshold;
+        this.defersHashing = defersHashing;
+        this.copiesPaths = copiesPaths;
+    }
+
+    /*default*/ boolean forks(int alterationCount) {
+        return alterationCount >= forkThreshold;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A <code>JMerkleAlterable</code> resolved against a tree's
+ * <code>JMerkleHashFunction</code>: its key bytes, the key's digest (whose
+ * bytes route it through the tree's branches) and the hash of its value (null
+ * for a removal) are computed once, when the alteration enters
+ * <code>JMerkle.alter</code>, rather than at every level it descends.
+ */
+/*default*/ final class Alteration {
+
+    /*default*/ final byte[] key;
+
+    /*default*/ final byte[] keyDigest;
+
+    /*default*/ final byte[] hashVal;
+
+    /*default*/ Alteration(byte[] key, byte[] keyDigest, byte[] hashVal) {
+        this.key = key;
+        this.keyDigest = keyDigest;
+        this.hashVal = hashVal;
+    }
+
+    /*default*/ static List<Alteration> of(List<? extends JMerkleAlterable> alterables, JMerkleHashFunction hashFunction,
+            AlterContext context) {
+        if (alterables == null) {
+            return null;
+        }
+        if (context.forks(alterables.size())) {
+            // resolving is dominated by hashing; spread it across the pool:
+            JMerkleAlterable[] source = alterables.toArray(new JMerkleAlterable[alterables.size()]);
+            Alteration[] alterations = new Alteration[source.length];
+            new ResolveTask(source, alterations, 0, source.length, hashFunction, context.forkThreshold).invoke();
+            return Arrays.asList(alterations);
+        }
+        List<Alteration> alterations = new ArrayList<Alteration>(alterables.size());
+        for (JMerkleAlterable alterable : alterables) {
+            alterations.add(of(alterable, hashFunction));
+        }
+        return alterations;
+    }
+
+    /*default*/ static Alteration of(JMerkleAlterable alterable, JMerkleHashFunction hashFunction) {
+        if (alterable instanceof JMerkleBinaryAlterable) {
+            JMerkleBinaryAlterable binaryAlterable = (JMerkleBinaryAlterable) alterable;
+            // copied, since the leaf will retain them:
+            byte[] key = binaryAlterable.getKeyBytes().clone();
+            return new Alteration(key, JMerkle.keyDigest(hashFunction, key), hashValue(binaryAlterable, hashFunction));
+        } else {
+            byte[] key = alterable.getKey().getBytes(JMerkle.UTF8);
+            Serializable value = alterable.getValue();
+            return new Alteration(key, JMerkle.keyDigest(hashFunction, key), JMerkle.hash(hashFunction, value));
+        }
+    }
+
+    private static byte[] hashValue(JMerkleBinaryAlterable alterable, JMerkleHashFunction hashFunction) {
+        byte[] valueDigest = alterable.getValueDigest();
+        if (valueDigest != null) {
+            return valueDigest.length == hashFunction.width() ? valueDigest.clone() : hashFunction.hash(valueDigest);
+        }
+        ByteBuffer valueBytes = alterable.getValueBytes();
+        if (valueBytes == null) {
+            return null;
+        }
+        MessageDigest digest = hashFunction.digest();
+        digest.update(valueBytes.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Resolves a range of alterables, halving the range until it is smaller
+     * than the fork threshold.
+     */
+    private static class ResolveTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -2391817431906536744L;
+
+        private final JMerkleAlterable[] source;
+        private final Alteration[] target;
+        private final int from;
+        private final int to;
+        private final JMerkleHashFunction hashFunction;
+        private final int forkThreshold;
+
+        ResolveTask(JMerkleAlterable[] source, Alteration[] target, int from, int to, JMerkleHashFunction hashFunction,
+                int forkThreshold) {
+            this.source = source;
+            this.target = target;
+            this.from = from;
+            this.to = to;
+            this.hashFunction = hashFunction;
+            this.forkThreshold = forkThreshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= forkThreshold) {
+                for (int i = from; i < to; i++) {
+                    target[i] = of(source[i], hashFunction);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ResolveTask(source, target, from, middle, hashFunction, forkThreshold),
+                        new ResolveTask(source, target, middle, to, hashFunction, forkThreshold));
+            }
+        }
+    }
+}
@@ -15,162 +15,580 @@
  */
 package jmerkle.sequential;
 
-import java.io.Serializable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 public class Branch extends JMerkle {
 
     private static final long serialVersionUID = 240333586693350332L;
 
+    private static final JMerkle[] NO_CHILDREN = new JMerkle[0];
+
     transient int offset;
 
-    //hashVal will differ depending on key order; TreeMap is used
-    //in order to maintain idempotent consistency.
-    TreeMap<Byte, JMerkle> children = new TreeMap<Byte, JMerkle>();
+    //hashVal will differ depending on key order; children are kept in the
+    //(signed) order of their keys in order to maintain idempotent consistency.
+    //A child's index is its key + 128: the bitmap marks the occupied indexes
+    //and childNodes holds the children, densely packed, in index order.
+    private transient final long[] childBitmap = new long[4];
+
+    private transient JMerkle[] childNodes = NO_CHILDREN;
+
+    //set while the children are yet to be decoded from the marshaled
+    //structure this Branch was lazily unmarshaled from; see load().
+    private transient volatile NodeCursor source;
 
-    /*default*/ Branch() {}
+    //the marshaled form this Branch was lazily unmarshaled from (retained
+    //once its children are decoded); see origin().
+    private transient NodeCursor origin;
+
+    //only populated on the copies Java serialized for a
+    //JMerkleHashScheme.SERIALIZED hashVal; see serialize().
+    @SuppressWarnings("unused")
+    private TreeMap<Byte, JMerkle> children;
+
+    /*default*/ Branch(JMerkleHashFunction hashFunction, JMerkleHashScheme scheme) {
+        this.hashFunction = hashFunction;
+        this.scheme = scheme;
+    }
+
+    /**
+     * Creates a <code>Branch</code> whose children are decoded from the
+     * provided cursor (positioned on the marshaled branch) the first time
+     * they're needed. Its hashVal and offset are read right away.
+     */
+    /*default*/ Branch(NodeCursor source) {
+        this(source.hashFunction, source.scheme);
+        this.hashVal = source.hashVal();
+        this.offset = source.offset();
+        this.source = source;
+        this.origin = source;
+    }
+
+    /**
+     * @return a cursor on the marshaled form this <code>Branch</code> was
+     *         lazily unmarshaled from, or <code>null</code> if it wasn't.
+     *         The <code>Branch</code> has since been altered if its hashVal
+     *         differs from the marshaled one.
+     */
+    /*default*/ NodeCursor origin() {
+        return origin;
+    }
 
     @Override
-    JMerkle alterInternal(int offset, List<JMerkleAlterable> alterations) {
+    JMerkle alterInternal(int offset, List<Alteration> alterations, AlterContext context) {
+        return (context.copiesPaths && alterations != null ? copy() : this).alterInPlace(offset, alterations, context);
+    }
+
+    /**
+     * Alters this <code>Branch</code> itself (its descendants being copied
+     * or not as per the context).
+     */
+    /*default*/ JMerkle alterInPlace(int offset, List<Alteration> alterations, AlterContext context) {
+
+        load();
 
         if (alterations != null) {
 
-            Map<Byte, List<JMerkleAlterable>> collisions = new HashMap<Byte, List<JMerkleAlterable>>();
-            
-            for(JMerkleAlterable alteration : alterations) {
-                byte[] keyBytes = alteration.getKey().getBytes();
-                byte offsetKey = JMerkle.hash(keyBytes)[offset];
+            // leaves for unoccupied indexes and the alterations
+            // colliding with an existing (or new) child, by index:
+            Leaf[] newLeaves = null;
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            List<Alteration>[] collisions = new List[256];
+            int collisionCount = 0;
 
-                if (children.containsKey(offsetKey)) {
+            for(Alteration alteration : alterations) {
+                int index = index(alteration.keyDigest[offset]);
 
-                    List<JMerkleAlterable> collisionAlterations = collisions.get(offsetKey);
+                if (contains(index) || (newLeaves != null && newLeaves[index] != null)) {
+
+                    List<Alteration> collisionAlterations = collisions[index];
 
                     if (collisionAlterations == null) {
-                        collisionAlterations = new ArrayList<JMerkleAlterable>();
-                        collisions.put(offsetKey, collisionAlterations);
+                        collisionAlterations = new ArrayList<Alteration>();
+                        collisions[index] = collisionAlterations;
+                        collisionCount++;
                     }
                     collisionAlterations.add(alteration);
-                
+
                 } else {
-                    Serializable value = alteration.getValue();
-                    if (value != null) {
+                    if (alteration.hashVal != null) {
                         // we're in accordance w/ our balance rules...
-                        // create and insert the new Leaf:
-                        Leaf leaf = new Leaf(keyBytes, JMerkle.hash(value));
-                        children.put(offsetKey, leaf);
+                        // create the new Leaf:
+                        Leaf leaf = new Leaf(alteration.key, alteration.hashVal, hashFunction, scheme);
+                        leaf.keyDigest = alteration.keyDigest;
+                        if (newLeaves == null) {
+                            newLeaves = new Leaf[256];
+                        }
+                        newLeaves[index] = leaf;
                     }
                 }
-                    
+
             }
 
-            for (Entry<Byte, List<JMerkleAlterable>> collisionEntry : collisions.entrySet()) {
+            if (newLeaves != null) {
+                insert(newLeaves);
+            }
 
-                Byte collisionKey = collisionEntry.getKey();
+            boolean removed = false;
 
-                List<JMerkleAlterable> pendingAlterations = collisionEntry.getValue();
+            if (context.forks(alterations.size()) && collisionCount > 1) {
+                // each collision reaches a disjoint subtree; alter them concurrently
+                // and apply the results to children once they've all completed:
+                List<ChildAlterTask> tasks = new ArrayList<ChildAlterTask>(collisionCount);
+                for (int index = 0; index < 256; index++) {
+                    if (collisions[index] != null) {
+                        int position = position(index);
+                        tasks.add(new ChildAlterTask(position, childNodes[position], offset + 1, collisions[index], context));
+                    }
+                }
+                ForkJoinTask.invokeAll(tasks);
+                for (ChildAlterTask task : tasks) {
+                    removed |= replaceChild(task.position, task.join());
+                }
+            } else {
+                for (int index = 0; index < 256; index++) {
 
-                JMerkle child = children.get(collisionKey);
+                    List<Alteration> pendingAlterations = collisions[index];
 
-                if (child.isBranch()) {
-                    child.alterInternal(offset + 1, pendingAlterations);
-                } else {
-                    // the alteration insert result on a leaf can result in 
-                    // 1) an update to that leaf,
-                    // 2) deletion of that leaf, or 
-                    // 3) conversion of that leaf into a branch:
-                    if(child.alterInternal(offset + 1, pendingAlterations) == null) {
-                        // if null, the leaf alteration was a 'delete':
-                        children.remove(collisionKey);
+                    if (pendingAlterations != null) {
+                        int position = position(index);
+                        JMerkle child = childNodes[position];
+                        removed |= replaceChild(position, child.alterInternal(offset + 1, pendingAlterations, context));
                     }
                 }
             }
+
+            if (removed) {
+                removeNullChildren();
+            }
         }
-        
-        
-        Collection<JMerkle> values = children.values();
-        switch (values.size()) {
+
+
+        switch (childNodes.length) {
         case 0:
             return null;
         case 1:{
             // if it's a leaf, there's no longer a need for this branch.
-            JMerkle jMerkle = new ArrayList<JMerkle>(values).get(0);
+            JMerkle jMerkle = childNodes[0];
             if(!jMerkle.isBranch())
                 return jMerkle;
         }
         default:
-            int childBytes = 0;
-            for (JMerkle jMerkle : values) {
-                childBytes += jMerkle.offset();
+            resize();
+            if (context.defersHashing) {
+                // marks this branch (and, as they're on the way back up, its ancestors) as altered:
+                hashVal = null;
+            } else {
+                rehash();
             }
-            this.offset = 27 + children.size() + childBytes;
-            this.hashVal = null;
-            this.hashVal = JMerkle.hash(this);
             return this;
         }
     }
 
-    @Override
-    List<UserKeyWrapper> allKeysInternal() {
-        List<UserKeyWrapper> allkeys = new ArrayList<UserKeyWrapper>();
+    /**
+     * @return a copy of this <code>Branch</code> sharing its children, which
+     *         can be altered in place without altering this one.
+     */
+    private Branch copy() {
+        load();
+        Branch copy = new Branch(hashFunction, scheme);
+        copy.hashVal = hashVal;
+        copy.offset = offset;
+        copy.origin = origin;
+        System.arraycopy(childBitmap, 0, copy.childBitmap, 0, childBitmap.length);
+        copy.childNodes = childNodes.clone();
+        return copy;
+    }
+
+    /**
+     * Recomputes this <code>Branch</code>'s offset from its children's.
+     */
+    /*default*/ void resize() {
+        int childBytes = 0;
+        for (JMerkle jMerkle : childNodes) {
+            childBytes += jMerkle.offset();
+        }
+        // type (1) + hashVal (width) + offset (4) + number of children (2)
+        // + a key (1) per child + the children themselves:
+        this.offset = 7 + hashFunction.width() + childNodes.length + childBytes;
+    }
 
-        Collection<JMerkle> childValues = children.values();
-        for (JMerkle jMerkle : childValues) {
-            allkeys.addAll(jMerkle.allKeysInternal());
+    /**
+     * Digests a child as per <code>JMerkleHashScheme.CHILD_DIGEST</code>:
+     * its key, type and hashVal, then, as a leaf's hashVal covers only its
+     * value, a leaf's userKey as it would be marshaled.
+     */
+    /*default*/ static void digestChild(MessageDigest digest, byte key, boolean isBranch, byte[] hashVal, byte[] userKey) {
+        digest.update(key);
+        digest.update((byte) (isBranch ? 1 : 0));
+        digest.update(hashVal);
+        if (!isBranch) {
+            int length = userKey.length;
+            digest.update((byte) (length >>> 24));
+            digest.update((byte) (length >>> 16));
+            digest.update((byte) (length >>> 8));
+            digest.update((byte) length);
+            digest.update(userKey);
         }
+    }
 
-        return allkeys;
+    /*default*/ static int index(byte key) {
+        return key + 128;
     }
 
-    @Override
-    boolean isBranch() {
-        return true;
+    /*default*/ static byte key(int index) {
+        return (byte) (index - 128);
     }
 
     /**
-     * Returns whether the provided <code>Leaf</code> is a child of this
-     * <code>Branch</code>. Recursively exhausts child <code>Branch</code>es,
-     * but short-circuits once a match has been found.
-     * 
-     * @param leaf a non-null <code>Leaf</code>.
-     * @return If a <code>Leaf</code> with an identical key is found while
-     *         traversing the <code>Branch</code>, the <code>Leaf</code>
-     *         parameter's hash value is compared to the <code>Branch</code>'s
-     *         <code>Leaf</code>'s hash value. <code>true</code> is returned if
-     *         the respective hash values are identical; <code>false</code> 
-     *         otherwise. If a <code>Leaf</code> of identical key is not found 
-     *         and all of the <code>Branch</code>'s children have been exhausted, 
-     *         returns <code>null</code>.
-     */
-    /*default*/ Boolean contains(Leaf leaf) {
-        // cycle through all the children:
-        for (JMerkle jMerkle : children.values()) {
-            if (jMerkle.isBranch()) {
-                // if branch, rinse and repeat:
-                Boolean contains = ((Branch) jMerkle).contains(leaf);
-                if (contains != null)
-                    return contains;
-            } else {
-                Leaf childLeaf = (Leaf) jMerkle;
-                // if leaf, check its userKey:
-                if (Arrays.equals(childLeaf.userKey, leaf.userKey)) {
-                    // if userKeys are equal, enable
-                    // upstream short-circuit on hashVal:
-                    return Arrays.equals(childLeaf.hashVal, leaf.hashVal);
+     * Decodes the children from the marshaled structure this
+     * <code>Branch</code> was lazily unmarshaled from, if that is yet to be
+     * done. Child branches are themselves left to be decoded lazily.
+     */
+    private void load() {
+        if (source != null) {
+            synchronized (this) {
+                NodeCursor cursor = source;
+                if (cursor != null) {
+                    int[] indexes = new int[256];
+                    JMerkle[] children = new JMerkle[256];
+                    int childCount = 0;
+                    NodeCursor child = cursor.children();
+                    do {
+                        indexes[childCount] = child.index();
+                        children[childCount++] = child.isBranch() ? new Branch(child.detach())
+                                : new Leaf(child.userKey(), child.hashVal(), hashFunction, scheme);
+                    } while (child.next());
+                    setChildren(Arrays.copyOf(indexes, childCount), Arrays.copyOf(children, childCount));
+                    // publishes the children:
+                    source = null;
                 }
             }
         }
-        return null; // explicit null to facilitate short-circuiting logic.
+    }
+
+    /*default*/ int size() {
+        load();
+        return childNodes.length;
+    }
+
+    /**
+     * @return the children, densely packed, in index order.
+     */
+    /*default*/ JMerkle[] childNodes() {
+        load();
+        return childNodes;
+    }
+
+    /**
+     * @return the 256-bit occupancy bitmap of the children's indexes.
+     */
+    /*default*/ long[] childBitmap() {
+        load();
+        return childBitmap;
+    }
+
+    /*default*/ boolean contains(int index) {
+        load();
+        return (childBitmap[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @return the position within childNodes of the child at the provided
+     *         index (or where it would be inserted), i.e. the number of
+     *         occupied indexes below it.
+     */
+    /*default*/ int position(int index) {
+        load();
+        int word = index >>> 6;
+        int position = Long.bitCount(childBitmap[word] & ((1L << index) - 1));
+        while (word > 0) {
+            position += Long.bitCount(childBitmap[--word]);
+        }
+        return position;
+    }
+
+    /**
+     * @return the child at the provided index, or <code>null</code> if there
+     *         is none.
+     */
+    /*default*/ JMerkle child(int index) {
+        return contains(index) ? childNodes[position(index)] : null;
+    }
+
+    /**
+     * @return the lowest occupied index greater than or equal to the provided
+     *         index, or -1 if there is none. Iterating from 0 visits the
+     *         children in the order of childNodes.
+     */
+    /*default*/ int nextIndex(int index) {
+        load();
+        return nextIndex(childBitmap, index);
+    }
+
+    /**
+     * @return the lowest index greater than or equal to the provided index
+     *         whose bit is set in the provided 256-bit bitmap, or -1 if there
+     *         is none.
+     */
+    /*default*/ static int nextIndex(long[] bitmap, int index) {
+        if (index > 255) {
+            return -1;
+        }
+        int word = index >>> 6;
+        long bits = bitmap[word] & (-1L << index);
+        while (bits == 0) {
+            if (++word == 4) {
+                return -1;
+            }
+            bits = bitmap[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Puts the provided child at the provided index, replacing the existing
+     * child (if any).
+     */
+    /*default*/ void put(int index, JMerkle child) {
+        load();
+        int position = position(index);
+        if (contains(index)) {
+            childNodes[position] = child;
+        } else {
+            JMerkle[] nodes = new JMerkle[childNodes.length + 1];
+            System.arraycopy(childNodes, 0, nodes, 0, position);
+            nodes[position] = child;
+            System.arraycopy(childNodes, position, nodes, position + 1, childNodes.length - position);
+            childBitmap[index >>> 6] |= 1L << index;
+            childNodes = nodes;
+        }
+    }
+
+    /**
+     * Sets the children of a <code>Branch</code> that has none from parallel
+     * arrays of indexes (which must be ascending) and children.
+     */
+    /*default*/ void setChildren(int[] indexes, JMerkle[] children) {
+        for (int index : indexes) {
+            childBitmap[index >>> 6] |= 1L << index;
+        }
+        childNodes = children;
+    }
+
+    /**
+     * Merges the new leaves (whose indexes are all unoccupied) into the
+     * children with a single copy.
+     */
+    private void insert(Leaf[] newLeaves) {
+        int count = childNodes.length;
+        for (Leaf leaf : newLeaves) {
+            if (leaf != null) {
+                count++;
+            }
+        }
+        JMerkle[] nodes = new JMerkle[count];
+        int position = 0;
+        int existing = 0;
+        for (int index = 0; index < 256; index++) {
+            if (newLeaves[index] != null) {
+                nodes[position++] = newLeaves[index];
+                childBitmap[index >>> 6] |= 1L << index;
+            } else if (contains(index)) {
+                nodes[position++] = childNodes[existing++];
+            }
+        }
+        childNodes = nodes;
+    }
+
+    /**
+     * The alteration insert result on a child can result in
+     * 1) an update to that child,
+     * 2) deletion of that child (left <code>null</code> until
+     *    <code>removeNullChildren()</code> compacts the children), or
+     * 3) replacement of that child (a leaf converted into a
+     *    branch or a branch collapsed into its remaining leaf).
+     *
+     * @return whether the child was deleted.
+     */
+    private boolean replaceChild(int position, JMerkle alteredChild) {
+        childNodes[position] = alteredChild;
+        return alteredChild == null;
+    }
+
+    private void removeNullChildren() {
+        int count = 0;
+        for (JMerkle child : childNodes) {
+            if (child != null) {
+                count++;
+            }
+        }
+        JMerkle[] nodes = new JMerkle[count];
+        int position = 0;
+        int existing = 0;
+        for (int index = nextIndex(0); index >= 0; index = nextIndex(index + 1)) {
+            JMerkle child = childNodes[existing++];
+            if (child != null) {
+                nodes[position++] = child;
+            } else {
+                childBitmap[index >>> 6] &= ~(1L << index);
+            }
+        }
+        childNodes = nodes;
+    }
+
+    /**
+     * Recomputes this <code>Branch</code>'s hashVal from its children
+     * according to its scheme. Under <code>JMerkleHashScheme.CHILD_DIGEST</code>
+     * only the children's keys, types and hashVals (and the userKeys of the
+     * children that are leaves) are digested, so the children must already
+     * be current.
+     */
+    /*default*/ void rehash() {
+        if (scheme == JMerkleHashScheme.SERIALIZED) {
+            this.hashVal = null;
+            this.hashVal = hashFunction.hash(serialize());
+        } else {
+            MessageDigest digest = hashFunction.digest();
+            digest.update(scheme.version);
+            int position = 0;
+            for (int index = nextIndex(0); index >= 0; index = nextIndex(index + 1)) {
+                JMerkle child = childNodes[position++];
+                boolean childIsBranch = child.isBranch();
+                digestChild(digest, key(index), childIsBranch, child.hashVal, childIsBranch ? null : ((Leaf) child).userKey);
+            }
+            this.hashVal = digest.digest();
+        }
+    }
+
+    /**
+     * Rehashes this <code>Branch</code>, which <code>alterDeferred</code> left
+     * unhashed, after its likewise unhashed descendants.
+     */
+    /*default*/ void hash() {
+        for (JMerkle child : childNodes) {
+            if (child.hashVal == null) {
+                ((Branch) child).hash();
+            }
+        }
+        rehash();
+    }
+
+    /**
+     * Java serializes this <code>Branch</code> the way it was serialized back
+     * when its children were held in a <code>TreeMap</code>: every
+     * <code>Branch</code> of the subtree is replaced, as it's written, by a
+     * copy whose children field is populated. This keeps
+     * <code>JMerkleHashScheme.SERIALIZED</code> hashVals unchanged.
+     */
+    private byte[] serialize() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(bos) {
+                {
+                    enableReplaceObject(true);
+                }
+
+                @Override
+                protected Object replaceObject(Object obj) throws IOException {
+                    // writes the nodes themselves rather than their marshaled forms:
+                    if (obj instanceof SerializedForm) {
+                        obj = ((SerializedForm) obj).jMerkle;
+                    }
+                    return obj instanceof Branch ? ((Branch) obj).withChildrenMap() : obj;
+                }
+            };
+            oos.writeObject(this);
+            oos.flush();
+            oos.close();
+        } catch (IOException e) {
+            // nothing recoverable; throw a runtime exception:
+            throw new RuntimeException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    private Branch withChildrenMap() {
+        load();
+        Branch copy = new Branch(hashFunction, scheme);
+        copy.hashVal = hashVal;
+        copy.children = new TreeMap<Byte, JMerkle>();
+        int position = 0;
+        for (int index = nextIndex(0); index >= 0; index = nextIndex(index + 1)) {
+            copy.children.put(key(index), childNodes[position++]);
+        }
+        return copy;
+    }
+
+    @Override
+    void rehashInternal(JMerkleHashScheme scheme) {
+        load();
+        for (JMerkle jMerkle : childNodes) {
+            jMerkle.rehashInternal(scheme);
+        }
+        this.scheme = scheme;
+        rehash();
+    }
+
+    @Override
+    boolean allKeysInternal(JMerkleVisitor visitor) {
+        load();
+        for (JMerkle jMerkle : childNodes) {
+            if (!jMerkle.allKeysInternal(visitor))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    boolean isBranch() {
+        return true;
+    }
+
+    @Override
+    Leaf lookupInternal(int offset, byte[] key, byte[] keyDigest) {
+        JMerkle child = child(index(keyDigest[offset]));
+        return child == null ? null : child.lookupInternal(offset + 1, key, keyDigest);
     }
 
     @Override
     int offset() {
         return offset;
     }
-}
\ No newline at end of file
+
+    /**
+     * Applies a collision's alterations to the child it collided with.
+     */
+    private static class ChildAlterTask extends RecursiveTask<JMerkle> {
+
+        private static final long serialVersionUID = -6061430958498263470L;
+
+        final int position;
+        private final JMerkle child;
+        private final int offset;
+        private final List<Alteration> alterations;
+        private final AlterContext context;
+
+        ChildAlterTask(int position, JMerkle child, int offset, List<Alteration> alterations, AlterContext context) {
+            this.position = position;
+            this.child = child;
+            this.offset = offset;
+            this.alterations = alterations;
+            this.context = context;
+        }
+
+        @Override
+        protected JMerkle compute() {
+            return child.alterInternal(offset, alterations, context);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A JMerkle altered by any number of threads without contending for it:
+ * alterations are resolved (their keys and values hashed) by the threads
+ * submitting them, then queued for a single writer thread, which applies
+ * them in batches (a key's alterations within a batch coalesced into its
+ * last) and publishes each resulting JMerkle as a snapshot. Snapshots are
+ * produced as per <code>JMerkle.alterPersistent</code>, so each remains
+ * valid, and may be read (diffed, marshaled, etc.) without locking, however
+ * the container is altered afterwards.
+ * <p/>
+ * A batch is applied once the maximum batch size worth of alterations is
+ * queued, once the oldest queued alteration has waited for the maximum
+ * latency, or upon <code>flush()</code>, whichever comes first. Should a
+ * batch fail to apply, its alterations are dropped and the failure is
+ * reported by the next flush to complete (as the cause of its future's
+ * <code>ExecutionException</code>) or, failing that, by <code>close()</code>.
+ */
+public class ConcurrentJMerkle implements Closeable {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 4096;
+
+    public static final long DEFAULT_MAX_LATENCY_MILLIS = 10;
+
+    private final JMerkleHashFunction hashFunction;
+
+    private final int maxBatchSize;
+
+    private final long maxLatencyNanos;
+
+    // resolved alterations and Flush markers, in the order they were submitted:
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<Object>();
+
+    // the number of alterations queued and of flushes pending:
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger flushes = new AtomicInteger();
+
+    private final Thread writer;
+
+    private volatile JMerkle snapshot;
+
+    private volatile boolean closed;
+
+    // the failure of a batch that no flush has reported yet (guarded by this):
+    private RuntimeException unreported;
+
+    /**
+     * Creates a container of the provided JMerkle (which is left intact and
+     * may be null, in which case the container's JMerkle is hashed with
+     * <code>JMerkleHashFunction.SHA1</code>) with the default bounds.
+     */
+    public ConcurrentJMerkle(JMerkle tree) {
+        this(tree, tree == null ? JMerkleHashFunction.SHA1 : tree.hashFunction, DEFAULT_MAX_BATCH_SIZE,
+                DEFAULT_MAX_LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a container of the provided JMerkle (which is left intact and
+     * may be null), hashed with the provided hashFunction, whose writer
+     * applies at most maxBatchSize alterations at a time and lets none wait
+     * for longer than maxLatency (give or take the time the batches ahead of
+     * it take to apply).
+     */
+    public ConcurrentJMerkle(JMerkle tree, JMerkleHashFunction hashFunction, int maxBatchSize, long maxLatency, TimeUnit unit) {
+        if (tree != null && tree.hashFunction != hashFunction)
+            throw new IllegalArgumentException("JMerkle is hashed with JMerkleHashFunction " + tree.hashFunction.id() + ", not "
+                    + hashFunction.id());
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        if (maxLatency < 0)
+            throw new IllegalArgumentException("maxLatency must not be negative: " + maxLatency);
+        this.hashFunction = hashFunction;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = unit.toNanos(maxLatency);
+        this.snapshot = JMerkle.hashed(tree);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "ConcurrentJMerkle writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the provided alteration.
+     * 
+     * @throws IllegalStateException if the container is closed.
+     */
+    public void alter(JMerkleAlterable alteration) {
+        Alteration resolved = Alteration.of(alteration, hashFunction);
+        ensureOpen();
+        queue.add(resolved);
+        signal(1);
+    }
+
+    /**
+     * Queues the provided alterations, in order.
+     * 
+     * @throws IllegalStateException if the container is closed.
+     */
+    public void alter(List<? extends JMerkleAlterable> alterations) {
+        List<Alteration> resolved = Alteration.of(alterations, hashFunction, AlterContext.SEQUENTIAL);
+        ensureOpen();
+        queue.addAll(resolved);
+        signal(resolved.size());
+    }
+
+    /**
+     * @return the JMerkle last published by the writer (null if it has no
+     *         leaves); it isn't altered further.
+     */
+    public JMerkle snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Has the writer apply the alterations queued so far without waiting
+     * for the batch size or latency bounds.
+     * 
+     * @return a future of the snapshot published once every alteration
+     *         queued before this invocation has been applied.
+     */
+    public Future<JMerkle> flush() {
+        Flush flush = new Flush();
+        if (closed) {
+            // close() applied everything:
+            flush.complete(snapshot, takeUnreported());
+            return flush;
+        }
+        flushes.incrementAndGet();
+        queue.add(flush);
+        LockSupport.unpark(writer);
+        if (closed) {
+            // the writer may have stopped before the flush was queued:
+            drain();
+        }
+        return flush;
+    }
+
+    /**
+     * Applies the alterations queued so far and stops the writer. Further
+     * alterations are rejected (those racing the close are applied by the
+     * threads submitting them).
+     * 
+     * @throws IllegalStateException if a batch failed to apply and no flush
+     *         reported it.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+        RuntimeException failure = takeUnreported();
+        if (failure != null)
+            throw new IllegalStateException("ConcurrentJMerkle failed to apply queued alterations.", failure);
+    }
+
+    private void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("ConcurrentJMerkle is closed.");
+    }
+
+    /**
+     * Counts the provided number of alterations as queued, waking the
+     * writer if they're the first (the writer may have already taken them,
+     * so the count may have been below zero) or complete a batch.
+     */
+    private void signal(int count) {
+        int total = queued.addAndGet(count);
+        int previous = total - count;
+        if (previous <= 0 && total > 0 || previous < maxBatchSize && total >= maxBatchSize) {
+            LockSupport.unpark(writer);
+        }
+        if (closed) {
+            // the writer may have stopped before they were queued:
+            drain();
+        }
+    }
+
+    /**
+     * Applies whatever is queued.
+     */
+    private void drain() {
+        while (!queue.isEmpty()) {
+            applyBatch();
+        }
+    }
+
+    /**
+     * The writer's loop: waits for a batch to be due, then applies it.
+     */
+    private void write() {
+        // when the oldest queued alteration was first seen (0 if none was):
+        long batchStart = 0;
+        while (true) {
+            int pending = queued.get();
+            boolean flushing = flushes.get() > 0;
+            if (pending <= 0 && !flushing) {
+                if (!closed) {
+                    batchStart = 0;
+                    LockSupport.park(this);
+                    continue;
+                } else if (queue.isEmpty()) {
+                    return;
+                }
+            } else if (pending < maxBatchSize && !flushing && !closed) {
+                long now = System.nanoTime();
+                if (batchStart == 0) {
+                    batchStart = now;
+                }
+                long wait = batchStart + maxLatencyNanos - now;
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+            }
+            applyBatch();
+            // what's left (if anything) starts waiting now:
+            batchStart = 0;
+        }
+    }
+
+    /**
+     * Applies up to maxBatchSize queued alterations, publishes the result
+     * and completes the flushes queued among them. Only ever invoked by one
+     * thread at a time: the writer (or, once it has stopped, the
+     * submitting threads).
+     */
+    private synchronized void applyBatch() {
+        Map<ByteBuffer, Alteration> batch = new LinkedHashMap<ByteBuffer, Alteration>();
+        List<Flush> completed = new ArrayList<Flush>();
+        int drained = 0;
+        Object next;
+        while (drained < maxBatchSize && (next = queue.poll()) != null) {
+            if (next instanceof Flush) {
+                completed.add((Flush) next);
+            } else {
+                Alteration alteration = (Alteration) next;
+                // the key's last alteration wins:
+                batch.put(ByteBuffer.wrap(alteration.key), alteration);
+                drained++;
+            }
+        }
+        // a flush right behind a full batch is due as well:
+        while (queue.peek() instanceof Flush) {
+            completed.add((Flush) queue.poll());
+        }
+        queued.addAndGet(-drained);
+
+        if (!batch.isEmpty()) {
+            try {
+                snapshot = JMerkle.alterResolved(snapshot, new ArrayList<Alteration>(batch.values()), hashFunction,
+                        AlterContext.PERSISTENT);
+            } catch (RuntimeException e) {
+                // the batch is lost; the snapshot stands, and the failure
+                // waits for a flush (or close()) to report it:
+                if (unreported == null) {
+                    unreported = e;
+                } else {
+                    unreported.addSuppressed(e);
+                }
+            }
+        }
+        flushes.addAndGet(-completed.size());
+        if (!completed.isEmpty()) {
+            RuntimeException failure = takeUnreported();
+            for (Flush flush : completed) {
+                flush.complete(snapshot, failure);
+            }
+        }
+    }
+
+    /**
+     * @return the failure no flush has reported yet (if any), which is
+     *         thereby reported.
+     */
+    private synchronized RuntimeException takeUnreported() {
+        RuntimeException failure = unreported;
+        unreported = null;
+        return failure;
+    }
+
+    /**
+     * The future of a flush, completed by the writer.
+     */
+    private static final class Flush implements Future<JMerkle> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile JMerkle snapshot;
+
+        private volatile Throwable failure;
+
+        void complete(JMerkle snapshot, Throwable failure) {
+            this.snapshot = snapshot;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public JMerkle get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public JMerkle get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return result();
+        }
+
+        private JMerkle result() throws ExecutionException {
+            if (failure != null)
+                throw new ExecutionException(failure);
+            return snapshot;
+        }
+    }
+}
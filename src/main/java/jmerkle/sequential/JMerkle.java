@@ -17,137 +17,578 @@ package jmerkle.sequential;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public abstract class JMerkle implements Serializable {
 
     private static final long serialVersionUID = 7487888709693360107L;
 
-    /*default*/ byte[] hashVal;
+    /*default*/ static final Charset UTF8 = Charset.forName("UTF-8");
 
     /*
-     * Used simply for its equals method; specifically,
-     * utilizing <code>Arrays.equals(byte[] a, byte[] a2)</code>.
+     * The Java serialization stream of a byte[] up to (excluding) the
+     * array's length; i.e. stream header and class descriptor.
      */
-    /*default*/ static class UserKeyWrapper {
-        public byte[] bytes;
+    private static final byte[] SERIALIZED_BYTE_ARRAY_PREFIX;
 
-        UserKeyWrapper(byte[] bytes) {
-            this.bytes = bytes;
-        }
-        
-        @Override
-        public int hashCode() {
-            return Arrays.hashCode(bytes);
-        }
-        
-        @Override
-        public boolean equals(Object obj) {
-            if(obj instanceof UserKeyWrapper) {
-                return Arrays.equals(bytes, ((UserKeyWrapper) obj).bytes);
-            }
-            return false;
-        }
+    static {
+        byte[] serializedEmptyArray = getBytes(new byte[0]);
+        SERIALIZED_BYTE_ARRAY_PREFIX = Arrays.copyOf(serializedEmptyArray, serializedEmptyArray.length - 4);
     }
-    
+
+    /*default*/ static final int DEFAULT_FORK_THRESHOLD = 1024;
+
+    /*default*/ static final int DEFAULT_FORK_DEPTH = 2;
+
+    /*default*/ byte[] hashVal;
+
+    //scheme and hashFunction are restored from the marshaled header (by
+    //version and by registered id, respectively) when a JMerkle is read
+    //back from Java serialization; see writeReplace().
+    /*default*/ transient JMerkleHashScheme scheme;
+
+    /*default*/ transient JMerkleHashFunction hashFunction;
+
     /**
      * Provides the unique leaves between the two JMerkle parameters.
      * Either or both of the values may actually be null.
      */
     public static List<String> diff(JMerkle t1, JMerkle t2) {
+        StringCollector diff = new StringCollector();
+        diff(t1, t2, diff);
+        return diff.keys;
+    }
+
+    /**
+     * Passes the keys of the unique leaves between the two JMerkle parameters
+     * to the provided visitor as they are found, until the visitor declines
+     * to continue. Either or both of the JMerkle values may actually be null.
+     * 
+     * @return <code>true</code> if every unique leaf was visited;
+     *         <code>false</code> if the visitor stopped the diff.
+     */
+    public static boolean diff(JMerkle t1, JMerkle t2, JMerkleVisitor visitor) {
+        return diff(0, hashed(t1), hashed(t2), visitor);
+    }
+
+    /**
+     * Diffs two subtrees residing at the provided offset (depth) of their
+     * respective trees, either or both of which may be null.
+     */
+    private static boolean diff(int offset, JMerkle t1, JMerkle t2, JMerkleVisitor visitor) {
         if(t1 != null) {
             if(t2 != null) {
-                return t1.diff(t2);
+                return t1.diffInternal(offset, t2, visitor);
             } else {
-                return t1.allKeys();
+                return t1.allKeysInternal(visitor);
             }
         } else {
             if(t2 != null) {
-                return t2.allKeys();
+                return t2.allKeysInternal(visitor);
             } else {
-                return Collections.emptyList();
+                return true;
             }
         }
     }
     
+    /**
+     * Provides the unique leaves between the two JMerkle parameters as per
+     * <code>diff(t1, t2)</code>, but uses the provided pool to diff the
+     * children of divergent branches (and to gather the keys of subtrees
+     * unique to either tree) concurrently.
+     */
+    public static List<String> diffParallel(JMerkle t1, JMerkle t2, ForkJoinPool pool) {
+        return diffParallel(t1, t2, pool, DEFAULT_FORK_DEPTH);
+    }
+
+    /**
+     * Provides the unique leaves between the two JMerkle parameters as per
+     * <code>diffParallel(t1, t2, pool)</code>. Only branches within forkDepth
+     * levels of the uppermost branches have their children diffed as separate
+     * tasks; deeper subtrees are diffed by the thread that reached them.
+     */
+    public static List<String> diffParallel(JMerkle t1, JMerkle t2, ForkJoinPool pool, int forkDepth) {
+        if(t1 == null && t2 == null) {
+            return Collections.emptyList();
+        }
+        return unwrapKeys(pool.invoke(new DiffTask(hashed(t1), hashed(t2), 0, forkDepth)));
+    }
+
+    /**
+     * Provides the unique leaves between the primary JMerkle and each of the
+     * replicas as per <code>diff(primary, replica)</code>, but in a single
+     * traversal: the primary is descended once, alongside every replica
+     * still diverging from it, and a replica drops out of the traversal of a
+     * subtree as soon as its branch's hash equals the primary's. Replicas
+     * holding identical subtrees (as replicas mostly agree with one another)
+     * have them diffed once, on behalf of all of them. Any of the JMerkle
+     * values may be null.
+     * 
+     * @return the unique leaves per replica, in the order of the replicas.
+     */
+    public static List<Set<String>> diffAll(JMerkle primary, List<JMerkle> replicas) {
+        JMerkle[] hashedReplicas = new JMerkle[replicas.size()];
+        JMerkleVisitor[] visitors = new JMerkleVisitor[replicas.size()];
+        List<Set<String>> diffs = new ArrayList<Set<String>>(replicas.size());
+        for (int i = 0; i < hashedReplicas.length; i++) {
+            hashedReplicas[i] = hashed(replicas.get(i));
+            final Set<String> diff = new LinkedHashSet<String>();
+            visitors[i] = new JMerkleVisitor() {
+                @Override
+                public boolean visit(byte[] key) {
+                    diff.add(new String(key, UTF8));
+                    return true;
+                }
+            };
+            diffs.add(diff);
+        }
+        diffAll(0, hashed(primary), hashedReplicas, visitors);
+        return diffs;
+    }
+
+    /**
+     * Diffs the primary subtree against each of the replicas' subtrees, all
+     * residing at the provided offset (depth) of their respective trees,
+     * passing the unique leaves to the replica's visitor. Any of the
+     * subtrees may be null.
+     */
+    private static void diffAll(int offset, JMerkle primary, JMerkle[] replicas, JMerkleVisitor[] visitors) {
+        // replicas whose branch matches the primary's drop out; those holding
+        // identical subtrees are diffed once, on behalf of all of them:
+        JMerkle[] distinct = new JMerkle[replicas.length];
+        JMerkleVisitor[] distinctVisitors = new JMerkleVisitor[replicas.length];
+        int count = 0;
+        for (int i = 0; i < replicas.length; i++) {
+            JMerkle replica = replicas[i];
+            if (primary != null && replica != null && primary.isBranch() && replica.isBranch()
+                    && Arrays.equals(primary.hashVal, replica.hashVal)) {
+                continue;
+            }
+            int d = 0;
+            while (d < count && !identical(distinct[d], replica)) {
+                d++;
+            }
+            if (d == count) {
+                distinct[count] = replica;
+                distinctVisitors[count++] = visitors[i];
+            } else {
+                distinctVisitors[d] = FanOut.of(distinctVisitors[d], visitors[i]);
+            }
+        }
+
+        // diff all but the replicas' diverging branches, which are gathered
+        // at the front of the arrays:
+        int diverging = 0;
+        for (int d = 0; d < count; d++) {
+            JMerkle replica = distinct[d];
+            if (primary == null || replica == null) {
+                diff(offset, primary, replica, distinctVisitors[d]);
+            } else if (primary.isBranch() && replica.isBranch()) {
+                distinct[diverging] = replica;
+                distinctVisitors[diverging++] = distinctVisitors[d];
+            } else {
+                primary.diffInternal(offset, replica, distinctVisitors[d]);
+            }
+        }
+
+        if (diverging == 0) {
+            return;
+        }
+        Branch branch = (Branch) primary;
+        if (diverging == 1) {
+            // nothing left to share the traversal with:
+            diff(offset, branch, (Branch) distinct[0], distinctVisitors[0]);
+            return;
+        }
+
+        // the indexes occupied on any of the branches:
+        long[] indexes = branch.childBitmap().clone();
+        for (int d = 0; d < diverging; d++) {
+            long[] replicaIndexes = ((Branch) distinct[d]).childBitmap();
+            for (int word = 0; word < 4; word++) {
+                indexes[word] |= replicaIndexes[word];
+            }
+        }
+
+        JMerkleVisitor[] childVisitors = Arrays.copyOf(distinctVisitors, diverging);
+        JMerkle[] replicaChildren = new JMerkle[diverging];
+        for (int index = Branch.nextIndex(indexes, 0); index >= 0; index = Branch.nextIndex(indexes, index + 1)) {
+            for (int d = 0; d < diverging; d++) {
+                replicaChildren[d] = ((Branch) distinct[d]).child(index);
+            }
+            diffAll(offset + 1, branch.child(index), replicaChildren, childVisitors);
+        }
+    }
+
+    /**
+     * @return whether the two subtrees (either of which may be null) are
+     *         identical; a leaf's hash covers its value only, so leaves must
+     *         share their key as well.
+     */
+    private static boolean identical(JMerkle t1, JMerkle t2) {
+        if (t1 == null || t2 == null) {
+            return t1 == t2;
+        }
+        boolean isBranch = t1.isBranch();
+        return isBranch == t2.isBranch() && Arrays.equals(t1.hashVal, t2.hashVal)
+                && (isBranch || Arrays.equals(((Leaf) t1).userKey, ((Leaf) t2).userKey));
+    }
+
     /**
      * Provides all the leaves on the provided JMerkle.
      * The parameter may be null, in which case, the
      * empty list is returned.
      */
     public static List<String> allkeys(JMerkle t1) {
+        StringCollector allkeys = new StringCollector();
+        allkeys(t1, allkeys);
+        return allkeys.keys;
+    }
+
+    /**
+     * Passes the keys of all the leaves on the provided JMerkle to the
+     * provided visitor, until the visitor declines to continue. The
+     * JMerkle may be null, in which case, nothing is visited.
+     * 
+     * @return <code>true</code> if every leaf was visited; <code>false</code>
+     *         if the visitor stopped the traversal.
+     */
+    public static boolean allkeys(JMerkle t1, JMerkleVisitor visitor) {
         if(t1 != null) {
-            return t1.allKeys();
+            return t1.allKeysInternal(visitor);
         } else {
-            return Collections.emptyList();
+            return true;
         }
     }
     
+    /**
+     * Provides the hash of the value stored under the provided key (encoded
+     * as UTF-8) on the provided JMerkle, or null if the key isn't present.
+     * The JMerkle may be null, in which case, null is returned.
+     */
+    public static byte[] lookup(JMerkle t1, String key) {
+        return lookup(t1, key.getBytes(UTF8));
+    }
+
+    /**
+     * Provides the hash of the value stored under the provided key on the
+     * provided JMerkle, or null if the key isn't present. Only the branches
+     * on the key's digest path are visited. The JMerkle may be null, in
+     * which case, null is returned.
+     */
+    public static byte[] lookup(JMerkle t1, byte[] key) {
+        if(t1 == null) {
+            return null;
+        }
+        Leaf leaf = t1.lookupInternal(0, key, keyDigest(t1.hashFunction, key));
+        return leaf == null ? null : leaf.hashVal.clone();
+    }
+
+    /**
+     * Provides the provided JMerkle's root hash (the hashVal of its
+     * uppermost node), or null if the JMerkle is null.
+     */
+    public static byte[] rootHash(JMerkle t1) {
+        return t1 == null ? null : hashed(t1).hashVal.clone();
+    }
+
+    /**
+     * Provides a proof that the provided key (encoded as UTF-8) is on the
+     * provided JMerkle as per <code>prove(t1, byte[])</code>.
+     */
+    public static byte[] prove(JMerkle t1, String key) {
+        return prove(t1, key.getBytes(UTF8));
+    }
+
+    /**
+     * Provides a proof that the provided key, with its current value, is on
+     * the provided JMerkle: the children of each of the branches on the
+     * key's path, other than the one on the path, from which the root hash
+     * can be recomputed from the key and its value's hash alone (see
+     * <code>verify</code>). The proof's size follows the depth of the key's
+     * leaf (times the branches' widths) rather than the size of the tree.
+     * 
+     * @return the proof, or null if the key isn't on the JMerkle (which may
+     *         be null).
+     * @throws IllegalArgumentException if the JMerkle isn't hashed with
+     *         <code>JMerkleHashScheme.CHILD_DIGEST</code>, or is a single
+     *         leaf (whose root hash is its value's alone, so nothing would
+     *         bind the key).
+     */
+    public static byte[] prove(JMerkle t1, byte[] key) {
+        return JMerkleProof.prove(t1, key);
+    }
+
+    /**
+     * Verifies a proof from <code>prove(t1, key)</code> as per
+     * <code>verify(rootHash, byte[], valueDigest, proof)</code>.
+     */
+    public static boolean verify(byte[] rootHash, String key, byte[] valueDigest, byte[] proof) {
+        return verify(rootHash, key.getBytes(UTF8), valueDigest, proof);
+    }
+
+    /**
+     * Verifies that a JMerkle with the provided root hash (see
+     * <code>rootHash</code>) holds the provided key with a value whose hash
+     * (as per <code>lookup</code>) is the provided valueDigest, by
+     * recomputing the root hash from the key and valueDigest up through the
+     * provided proof. A proof without branches to recompute is rejected, as
+     * nothing in it would bind the key.
+     * 
+     * @return <code>true</code> if the proof attests to the key and value;
+     *         <code>false</code> if it doesn't (or is malformed).
+     */
+    public static boolean verify(byte[] rootHash, byte[] key, byte[] valueDigest, byte[] proof) {
+        return JMerkleProof.verify(rootHash, key, valueDigest, proof);
+    }
+
     /**
      * Alters the leaf values of the provided JMerkle using the provided
      * list of JMerkleAlterable values.  If the t1 parameter is null,
-     * creates a new JMerkle and applies the alterations against it.
+     * creates a new JMerkle hashed with <code>JMerkleHashFunction.SHA1</code>
+     * and applies the alterations against it.  String keys are encoded
+     * as UTF-8.
+     */
+    public static JMerkle alter(JMerkle t1, List<? extends JMerkleAlterable> alterations) {
+        return alter(t1, alterations, t1 == null ? JMerkleHashFunction.SHA1 : t1.hashFunction);
+    }
+
+    /**
+     * Alters the leaf values of the provided JMerkle using the provided
+     * list of JMerkleAlterable values.  If the t1 parameter is null,
+     * creates a new JMerkle hashed with the provided hashFunction and
+     * applies the alterations against it.  A tree's hashFunction cannot
+     * be changed once it has been created.
+     */
+    public static JMerkle alter(JMerkle t1, List<? extends JMerkleAlterable> alterations, JMerkleHashFunction hashFunction) {
+        return alter(t1, alterations, hashFunction, AlterContext.SEQUENTIAL);
+    }
+
+    /**
+     * Alters the provided JMerkle as per <code>alter(t1, alterations)</code>,
+     * but defers hashing: the altered branches are only marked as such (by
+     * dropping their hashVals), then hashed once, bottom-up, when next
+     * needed (by <code>rootHash</code>, <code>diff</code>,
+     * <code>marshal</code> and the like, or by a non-deferred alter). Hashing
+     * then follows the number of distinct branches altered since rather
+     * than the number of alter invocations, suiting frequent small batches
+     * whose hashes are seldom read.
+     */
+    public static JMerkle alterDeferred(JMerkle t1, List<? extends JMerkleAlterable> alterations) {
+        return alterDeferred(t1, alterations, t1 == null ? JMerkleHashFunction.SHA1 : t1.hashFunction);
+    }
+
+    /**
+     * Alters the provided JMerkle as per
+     * <code>alter(t1, alterations, hashFunction)</code>, but defers hashing
+     * as per <code>alterDeferred(t1, alterations)</code>.
+     */
+    public static JMerkle alterDeferred(JMerkle t1, List<? extends JMerkleAlterable> alterations,
+            JMerkleHashFunction hashFunction) {
+        return alter(t1, alterations, hashFunction, AlterContext.DEFERRED);
+    }
+
+    /**
+     * Alters the provided JMerkle as per <code>alter(t1, alterations)</code>,
+     * but leaves it intact: only the nodes on the paths from the altered
+     * leaves up are copied (and altered), and the JMerkle produced shares the
+     * rest of its nodes with the provided one. Each JMerkle produced is thus
+     * a snapshot that remains valid (and readable, e.g. diffed or marshaled,
+     * concurrently with subsequent alterations) for as long as it's
+     * referenced. Readers on other threads must be handed a snapshot safely
+     * (e.g. via a volatile field).
+     */
+    public static JMerkle alterPersistent(JMerkle t1, List<? extends JMerkleAlterable> alterations) {
+        return alterPersistent(t1, alterations, t1 == null ? JMerkleHashFunction.SHA1 : t1.hashFunction);
+    }
+
+    /**
+     * Alters the provided JMerkle as per
+     * <code>alter(t1, alterations, hashFunction)</code>, but leaves it
+     * intact as per <code>alterPersistent(t1, alterations)</code>.
+     */
+    public static JMerkle alterPersistent(JMerkle t1, List<? extends JMerkleAlterable> alterations,
+            JMerkleHashFunction hashFunction) {
+        return alter(t1, alterations, hashFunction, AlterContext.PERSISTENT);
+    }
+
+    /**
+     * Alters the provided JMerkle as per <code>alter(t1, alterations)</code>,
+     * but uses the provided pool to hash the alterations and to alter a
+     * branch's children concurrently; each child is reached by a disjoint
+     * subset of the alterations. The resulting JMerkle is identical to the
+     * one the sequential alter produces.
+     */
+    public static JMerkle alterParallel(JMerkle t1, List<? extends JMerkleAlterable> alterations, ForkJoinPool pool) {
+        return alterParallel(t1, alterations, pool, DEFAULT_FORK_THRESHOLD);
+    }
+
+    /**
+     * Alters the provided JMerkle as per <code>alterParallel(t1, alterations, pool)</code>.
+     * Batches of fewer than forkThreshold alterations (whether all of them or
+     * those destined for a single child of a branch) are applied by a single
+     * thread.
+     */
+    public static JMerkle alterParallel(final JMerkle t1, final List<? extends JMerkleAlterable> alterations, ForkJoinPool pool,
+            int forkThreshold) {
+        final JMerkleHashFunction hashFunction = t1 == null ? JMerkleHashFunction.SHA1 : t1.hashFunction;
+        final AlterContext context = new AlterContext(forkThreshold);
+        return pool.invoke(new RecursiveTask<JMerkle>() {
+
+            private static final long serialVersionUID = 5327402958735046209L;
+
+            @Override
+            protected JMerkle compute() {
+                return alter(t1, alterations, hashFunction, context);
+            }
+        });
+    }
+
+    private static JMerkle alter(JMerkle t1, List<? extends JMerkleAlterable> alterations, JMerkleHashFunction hashFunction,
+            AlterContext context) {
+        return alterResolved(t1, Alteration.of(alterations, hashFunction, context), hashFunction, context);
+    }
+
+    /**
+     * Alters the provided JMerkle with alterations already resolved against
+     * the provided hashFunction.
      */
-    public static JMerkle alter(JMerkle t1, List<JMerkleAlterable> alterations) {
+    /*default*/ static JMerkle alterResolved(JMerkle t1, List<Alteration> alterations, JMerkleHashFunction hashFunction,
+            AlterContext context) {
         if(t1 == null) {
-            t1 = new Leaf();
+            t1 = new Leaf(hashFunction, JMerkleHashScheme.CHILD_DIGEST);
+        } else if(t1.hashFunction != hashFunction) {
+            throw new IllegalArgumentException("JMerkle is hashed with JMerkleHashFunction " + t1.hashFunction.id()
+                    + ", not " + hashFunction.id());
+        } else if(!context.defersHashing) {
+            // the altered branches are rehashed from their children's hashVals:
+            hashed(t1);
         }
-        return t1.alterInternal(0, alterations);
+        return t1.alterInternal(0, alterations, context);
     }
 
-    private List<String> diff(JMerkle jMerkle) {
-        List<UserKeyWrapper> internalDiff = diffInternal(jMerkle);
-        List<String> diff = unwrapKeys(internalDiff);
-        return diff;
+    /**
+     * Rehashes every branch of the provided JMerkle using the provided
+     * scheme; for example, to migrate a tree produced by an earlier release
+     * (<code>JMerkleHashScheme.SERIALIZED</code>) to
+     * <code>JMerkleHashScheme.CHILD_DIGEST</code>. Subsequent alterations
+     * continue to use the provided scheme. The parameter may be null, in
+     * which case, null is returned.
+     */
+    public static JMerkle rehash(JMerkle t1, JMerkleHashScheme scheme) {
+        if(t1 != null) {
+            t1.rehashInternal(scheme);
+        }
+        return t1;
     }
 
-    private List<String> allKeys() {
-        List<UserKeyWrapper> allKeysInternal = allKeysInternal();
-        List<String> allKeys = unwrapKeys(allKeysInternal);
-        return allKeys;
+    /**
+     * Hashes the branches of the provided JMerkle left unhashed by
+     * <code>alterDeferred</code>, if any. The branches above an unhashed
+     * one are themselves unhashed, so only those are visited.
+     * <p/>
+     * Readers may share a tree; the first one hashes it. Every reader goes
+     * through the root's monitor (hashVals aren't volatile), which makes the
+     * hashes written by that first reader visible to the others.
+     * 
+     * @return the provided JMerkle, which may be null.
+     */
+    /*default*/ static JMerkle hashed(JMerkle t1) {
+        if(t1 != null) {
+            synchronized(t1) {
+                if(t1.hashVal == null) {
+                    ((Branch) t1).hash();
+                }
+            }
+        }
+        return t1;
+    }
+
+    /**
+     * Java serializes a JMerkle (and each node of its structure) as its
+     * marshaled form: a <code>Branch</code>'s children, hash function and
+     * scheme are held in transient fields. The hash function is read back
+     * by its id, so a custom one must be registered on both ends.
+     */
+    /*default*/ final Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(this);
     }
 
     /*default*/ abstract boolean isBranch();
 
-    /*default*/ abstract JMerkle alterInternal(int offset, List<JMerkleAlterable> alterations);
+    /*default*/ abstract JMerkle alterInternal(int offset, List<Alteration> alterations, AlterContext context);
 
-    /*default*/ abstract List<UserKeyWrapper> allKeysInternal();
+    /**
+     * Visits the keys of all of this JMerkle's leaves.
+     * 
+     * @return <code>false</code> if the visitor stopped the traversal.
+     */
+    /*default*/ abstract boolean allKeysInternal(JMerkleVisitor visitor);
+
+    /*default*/ abstract void rehashInternal(JMerkleHashScheme scheme);
+
+    /**
+     * Follows the provided key's digest from the provided offset (this
+     * JMerkle's depth) down to the leaf the key would reside on.
+     * 
+     * @return the leaf holding the key, or <code>null</code> if there is none.
+     */
+    /*default*/ abstract Leaf lookupInternal(int offset, byte[] key, byte[] keyDigest);
 
     /*default*/ abstract int offset();
 
     /**
-     * This method returns a byte[] of size 20. <br/>
-     * <b>Sha-1 is used to create the byte[]; its usage is <i>not</i> for
-     * cryptographic purposes.</b>
+     * This method returns a byte[] of size <code>hashFunction.width()</code>. <br/>
+     * <b>The hash function's usage is <i>not</i> for cryptographic purposes.</b>
      * 
+     * @param hashFunction
      * @param obj
      * @return
      */
-    /*default*/ static final byte[] hash(Serializable obj) {
+    /*default*/ static final byte[] hash(JMerkleHashFunction hashFunction, Serializable obj) {
         byte[] hash = null;
         if(obj != null) {
             byte[] bytes = JMerkle.getBytes(obj);
-            MessageDigest digest = null;
-            try {
-                digest = MessageDigest.getInstance("SHA-1");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
-            hash = digest.digest(bytes);
+            hash = hashFunction.hash(bytes);
         }
         return hash;
     }
 
+    /**
+     * Returns the hash that routes the provided key through the tree's
+     * branches (its byte at a branch's depth selects the child). This is
+     * the hash of the Java serialized byte[], as originally computed via
+     * <code>hash(hashFunction, userKey)</code>, but the serialization stream
+     * is emulated by digesting its fixed prefix and the key's length rather
+     * than serializing the key.
+     */
+    /*default*/ static final byte[] keyDigest(JMerkleHashFunction hashFunction, byte[] userKey) {
+        MessageDigest digest = hashFunction.digest();
+        digest.update(SERIALIZED_BYTE_ARRAY_PREFIX);
+        int length = userKey.length;
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+        digest.update(userKey);
+        return digest.digest();
+    }
+
     private static byte[] getBytes(Serializable obj) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
@@ -164,128 +605,330 @@ public abstract class JMerkle implements Serializable {
         return data;
     }
 
-    private List<String> unwrapKeys(List<UserKeyWrapper> wrappedKeys) {
-        int wrappedKeysSize = wrappedKeys.size();
-        List<String> unwrappedKeys = new ArrayList<String>(wrappedKeysSize);
-        for(UserKeyWrapper ukw : wrappedKeys) {
-            unwrappedKeys.add(new String(ukw.bytes));
+    private static List<String> unwrapKeys(List<byte[]> keys) {
+        List<String> unwrappedKeys = new ArrayList<String>(keys.size());
+        for(byte[] key : keys) {
+            unwrappedKeys.add(new String(key, UTF8));
         }
         return unwrappedKeys;
     }
 
-    private List<UserKeyWrapper> diffInternal(JMerkle that) {
+    /**
+     * Diffs this JMerkle against that one, both residing at the provided
+     * offset (depth) of their respective trees.
+     */
+    private boolean diffInternal(int offset, JMerkle that, JMerkleVisitor visitor) {
         boolean thatIsBranch = that.isBranch();
         if (this.isBranch()) {
             if (thatIsBranch) {
-                return diff((Branch) this, (Branch) that);
+                return diff(offset, (Branch) this, (Branch) that, visitor);
             } else {
-                return diff((Leaf) that, (Branch) this);
+                return diff(offset, (Leaf) that, (Branch) this, visitor);
             }
         } else {
             if (thatIsBranch) {
-                return diff((Leaf) this, (Branch) that);
+                return diff(offset, (Leaf) this, (Branch) that, visitor);
             } else {
-                return diff((Leaf) this, (Leaf) that);
+                return diff((Leaf) this, (Leaf) that, visitor);
             }
         }
     }
 
-    private List<UserKeyWrapper> diff(Leaf thisLeaf, Leaf thatLeaf) {
+    private static boolean diff(Leaf thisLeaf, Leaf thatLeaf, JMerkleVisitor visitor) {
 
         byte[] thisLeafUserKey = thisLeaf.userKey;
         byte[] thatLeafUserKey = thatLeaf.userKey;
 
         if (thisLeafUserKey == null) {
-            if (thatLeafUserKey != null) {
-                return Collections.singletonList(new UserKeyWrapper(thatLeafUserKey));
-            } else {
-                return Collections.emptyList();
-            }
+            return thatLeafUserKey == null || visitor.visit(thatLeafUserKey);
         } else {
             if (thatLeafUserKey == null) {
-                return Collections.singletonList(new UserKeyWrapper(thisLeafUserKey));
+                return visitor.visit(thisLeafUserKey);
             } else {
-
-                List<UserKeyWrapper> keys = null;
-
                 if (Arrays.equals(thisLeafUserKey, thatLeafUserKey)) {
-                    if (Arrays.equals(thisLeaf.hashVal, thatLeaf.hashVal)) {
-                        keys = Collections.emptyList();
-                    } else {
-                        keys = Collections.singletonList(new UserKeyWrapper(thisLeafUserKey));
-                    }
+                    return Arrays.equals(thisLeaf.hashVal, thatLeaf.hashVal) || visitor.visit(thisLeafUserKey);
                 } else {
-                    // if they're different, return both:
-                    keys = new ArrayList<UserKeyWrapper>(2);
-                    keys.add(new UserKeyWrapper(thatLeafUserKey));
-                    keys.add(new UserKeyWrapper(thatLeafUserKey));
+                    // if they're different, visit both:
+                    return visitor.visit(thisLeafUserKey) && visitor.visit(thatLeafUserKey);
                 }
-
-                return keys;
             }
         }
     }
 
-    private List<UserKeyWrapper> diff(Leaf leaf, Branch branch) {
-
-        List<UserKeyWrapper> diffKeys = branch.allKeysInternal();
+    private static boolean diff(int offset, Leaf leaf, Branch branch, final JMerkleVisitor visitor) {
 
-        Boolean contains = branch.contains(leaf);
+        if (leaf.userKey == null) {
+            // an empty leaf; all of the branch's keys are unique:
+            return branch.allKeysInternal(visitor);
+        }
 
-        UserKeyWrapper leafUserKeyWrapper = new UserKeyWrapper(leaf.userKey);
+        final Leaf branchLeaf = branch.lookupInternal(offset, leaf.userKey, leaf.keyDigest());
 
-        if (contains != null && contains) {
-            diffKeys.remove(leafUserKeyWrapper);
+        if (branchLeaf == null) {
+            // the leaf's key isn't on the branch; it's unique as well:
+            return visitor.visit(leaf.userKey) && branch.allKeysInternal(visitor);
+        } else if (!Arrays.equals(branchLeaf.hashVal, leaf.hashVal)) {
+            // the branch's leaf differs; its key gets visited along with the rest:
+            return branch.allKeysInternal(visitor);
         } else {
-            // it might already be there, but we need to be sure:
-            // (to clarify, it might already be there by the virtue
-            // that the branch's leaf and the provided leaf's hash
-            // vals are indeed different.)
-            diffKeys.add(leafUserKeyWrapper);
+            // identical leaves; visit all of the branch's keys but its leaf's
+            // (which is the very userKey instance the branch visits):
+            return branch.allKeysInternal(new JMerkleVisitor() {
+                @Override
+                public boolean visit(byte[] key) {
+                    return key == branchLeaf.userKey || visitor.visit(key);
+                }
+            });
         }
-
-        return diffKeys;
     }
 
-    private List<UserKeyWrapper> diff(Branch b1, Branch b2) {
+    private static boolean diff(int offset, Branch b1, Branch b2, JMerkleVisitor visitor) {
         if (Arrays.equals(b1.hashVal, b2.hashVal)) {
-            return Collections.emptyList();
+            return true;
         } else {
 
-            List<UserKeyWrapper> diffKeys = new ArrayList<UserKeyWrapper>();
-
-            Map<Byte, JMerkle> b1Children = b1.children;
-            Map<Byte, JMerkle> b2Children = b2.children;
+            // partition the children's indexes with bitwise AND/ANDNOT
+            // over the occupancy bitmaps:
+            long[] commonIndexes = new long[4];
+            long[] b1UniqueIndexes = new long[4];
+            long[] b2UniqueIndexes = new long[4];
+            partition(b1, b2, commonIndexes, b1UniqueIndexes, b2UniqueIndexes);
 
             // recursive diff on keys in common:
-            Set<Byte> commonKeys = new HashSet<Byte>(b1Children.keySet());
-            commonKeys.retainAll(new HashSet<Byte>(b2Children.keySet()));
-
-            for (Byte commonKey : commonKeys) {
-                JMerkle b1Child = b1Children.get(commonKey);
-                JMerkle b2Child = b2Children.get(commonKey);
-                diffKeys.addAll(b1Child.diffInternal(b2Child));
+            for (int index = Branch.nextIndex(commonIndexes, 0); index >= 0; index = Branch.nextIndex(commonIndexes, index + 1)) {
+                if (!b1.child(index).diffInternal(offset + 1, b2.child(index), visitor))
+                    return false;
             }
 
             // all user keys on keys unique to b1:
-            Set<Byte> b1UniqueKeys = new HashSet<Byte>(b1Children.keySet());
-            b1UniqueKeys.removeAll(new HashSet<Byte>(b2Children.keySet()));
-
-            for (Byte b1UniqueKey : b1UniqueKeys) {
-                JMerkle b1Child = b1Children.get(b1UniqueKey);
-                diffKeys.addAll(b1Child.allKeysInternal());
+            for (int index = Branch.nextIndex(b1UniqueIndexes, 0); index >= 0; index = Branch.nextIndex(b1UniqueIndexes, index + 1)) {
+                if (!b1.child(index).allKeysInternal(visitor))
+                    return false;
             }
 
             // all user keys on keys unique to b2:
-            Set<Byte> b2UniqueKeys = new HashSet<Byte>(b2Children.keySet());
-            b2UniqueKeys.removeAll(new HashSet<Byte>(b1Children.keySet()));
+            for (int index = Branch.nextIndex(b2UniqueIndexes, 0); index >= 0; index = Branch.nextIndex(b2UniqueIndexes, index + 1)) {
+                if (!b2.child(index).allKeysInternal(visitor))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Splits the occupied indexes of two branches into those they have in
+     * common and those unique to either one.
+     */
+    private static void partition(Branch b1, Branch b2, long[] commonIndexes, long[] b1UniqueIndexes, long[] b2UniqueIndexes) {
+        for (int word = 0; word < 4; word++) {
+            long b1Bits = b1.childBitmap()[word];
+            long b2Bits = b2.childBitmap()[word];
+            commonIndexes[word] = b1Bits & b2Bits;
+            b1UniqueIndexes[word] = b1Bits & ~b2Bits;
+            b2UniqueIndexes[word] = b2Bits & ~b1Bits;
+        }
+    }
+
+    /**
+     * Collects visited keys as Strings.
+     */
+    /*default*/ static class StringCollector implements JMerkleVisitor {
+
+        final List<String> keys = new ArrayList<String>();
+
+        @Override
+        public boolean visit(byte[] key) {
+            keys.add(new String(key, UTF8));
+            return true;
+        }
+    }
 
-            for (Byte b2UniqueKey : b2UniqueKeys) {
-                JMerkle b2Child = b2Children.get(b2UniqueKey);
-                diffKeys.addAll(b2Child.allKeysInternal());
+    /**
+     * Collects visited keys as they are.
+     */
+    private static class KeyCollector implements JMerkleVisitor {
+
+        final List<byte[]> keys = new ArrayList<byte[]>();
+
+        @Override
+        public boolean visit(byte[] key) {
+            keys.add(key);
+            return true;
+        }
+    }
+
+    /**
+     * Passes visited keys on to each of several visitors.
+     */
+    private static class FanOut implements JMerkleVisitor {
+
+        private final JMerkleVisitor[] visitors;
+
+        private FanOut(JMerkleVisitor[] visitors) {
+            this.visitors = visitors;
+        }
+
+        /**
+         * @return a visitor passing keys on to the provided visitor (which
+         *         may itself be a FanOut) and to one more.
+         */
+        static FanOut of(JMerkleVisitor visitor, JMerkleVisitor another) {
+            JMerkleVisitor[] visitors = visitor instanceof FanOut ? ((FanOut) visitor).visitors : new JMerkleVisitor[] { visitor };
+            JMerkleVisitor[] fannedOut = Arrays.copyOf(visitors, visitors.length + 1);
+            fannedOut[visitors.length] = another;
+            return new FanOut(fannedOut);
+        }
+
+        @Override
+        public boolean visit(byte[] key) {
+            for (JMerkleVisitor visitor : visitors) {
+                visitor.visit(key);
             }
+            return true;
+        }
+    }
+
+    /**
+     * Diffs two subtrees, either of which may be null (in which case the
+     * other's keys are all unique). Within forkDepth, the children of
+     * divergent branches are diffed as separate tasks, each producing its own
+     * list; the lists are concatenated, in the same order as the sequential
+     * diff's, once every task has completed.
+     */
+    private static class DiffTask extends RecursiveTask<List<byte[]>> {
+
+        private static final long serialVersionUID = 3957315405874458213L;
+
+        private final JMerkle t1;
+        private final JMerkle t2;
+        private final int depth;
+        private final int forkDepth;
+
+        DiffTask(JMerkle t1, JMerkle t2, int depth, int forkDepth) {
+            this.t1 = t1;
+            this.t2 = t2;
+            this.depth = depth;
+            this.forkDepth = forkDepth;
+        }
+
+        @Override
+        protected List<byte[]> compute() {
+            if (depth < forkDepth) {
+                if (t1 != null && t2 != null) {
+                    if (t1.isBranch() && t2.isBranch()) {
+                        return diff((Branch) t1, (Branch) t2);
+                    }
+                } else {
+                    JMerkle unique = t1 != null ? t1 : t2;
+                    if (unique.isBranch()) {
+                        return allKeys((Branch) unique);
+                    }
+                }
+            }
+
+            KeyCollector keys = new KeyCollector();
+            JMerkle.diff(depth, t1, t2, keys);
+            return keys.keys;
+        }
+
+        private List<byte[]> diff(Branch b1, Branch b2) {
+            if (Arrays.equals(b1.hashVal, b2.hashVal)) {
+                return Collections.emptyList();
+            }
+
+            long[] commonIndexes = new long[4];
+            long[] b1UniqueIndexes = new long[4];
+            long[] b2UniqueIndexes = new long[4];
+            partition(b1, b2, commonIndexes, b1UniqueIndexes, b2UniqueIndexes);
+
+            List<DiffTask> tasks = new ArrayList<DiffTask>();
+
+            for (int index = Branch.nextIndex(commonIndexes, 0); index >= 0; index = Branch.nextIndex(commonIndexes, index + 1)) {
+                tasks.add(new DiffTask(b1.child(index), b2.child(index), depth + 1, forkDepth));
+            }
+
+            for (int index = Branch.nextIndex(b1UniqueIndexes, 0); index >= 0; index = Branch.nextIndex(b1UniqueIndexes, index + 1)) {
+                tasks.add(new DiffTask(b1.child(index), null, depth + 1, forkDepth));
+            }
+
+            for (int index = Branch.nextIndex(b2UniqueIndexes, 0); index >= 0; index = Branch.nextIndex(b2UniqueIndexes, index + 1)) {
+                tasks.add(new DiffTask(null, b2.child(index), depth + 1, forkDepth));
+            }
+
+            return join(tasks);
+        }
+
+        private List<byte[]> allKeys(Branch branch) {
+            List<DiffTask> tasks = new ArrayList<DiffTask>(branch.size());
+            for (JMerkle child : branch.childNodes()) {
+                tasks.add(new DiffTask(child, null, depth + 1, forkDepth));
+            }
+            return join(tasks);
+        }
+
+        private static List<byte[]> join(List<DiffTask> tasks) {
+            invokeAll(tasks);
+            int size = 0;
+            for (DiffTask task : tasks) {
+                size += task.join().size();
+            }
+            List<byte[]> keys = new ArrayList<byte[]>(size);
+            for (DiffTask task : tasks) {
+                keys.addAll(task.join());
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * The Java serialized form of a JMerkle; see <code>writeReplace()</code>.
+     * The node is only marshaled once the form is actually written, as
+     * <code>Branch.serialize()</code> writes the node itself instead.
+     */
+    /*default*/ static final class SerializedForm implements Serializable {
+
+        private static final long serialVersionUID = 2069532513127470329L;
+
+        /*default*/ transient JMerkle jMerkle;
+
+        SerializedForm(JMerkle jMerkle) {
+            this.jMerkle = jMerkle;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            // read back by its id; another function could be registered under it:
+            if (JMerkleHashFunction.forId(jMerkle.hashFunction.id()) != jMerkle.hashFunction)
+                throw new NotSerializableException("JMerkle is hashed with unregistered JMerkleHashFunction "
+                        + jMerkle.hashFunction.id() + "; it must be registered to be serialized.");
+            byte[] treeBytes = JMerkleMarshaler.marshal(hashed(jMerkle), JMerkleFormat.V1);
+            out.writeInt(treeBytes.length);
+            out.write(treeBytes);
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length <= 0)
+                throw new InvalidObjectException("Serialized JMerkle has an invalid length of " + length + " bytes.");
+            byte[] treeBytes = new byte[length];
+            in.readFully(treeBytes);
+            // the header (written by writeObject) identifies the hash function:
+            int hashFunctionId = length < JMerkleMarshaler.HEADER_SIZE ? -1 : treeBytes[3] & 0xFF;
+            if (hashFunctionId >= 0 && treeBytes[0] == JMerkleMarshaler.MAGIC_0 && treeBytes[1] == JMerkleMarshaler.MAGIC_1
+                    && JMerkleHashFunction.forId(hashFunctionId) == null)
+                throw new InvalidObjectException("Serialized JMerkle uses unregistered JMerkleHashFunction " + hashFunctionId
+                        + "; it must be registered to be deserialized.");
+            try {
+                jMerkle = JMerkleMarshaler.unmarshal(treeBytes);
+            } catch (Exception e) {
+                InvalidObjectException invalid = new InvalidObjectException("Serialized JMerkle is corrupt: " + e.getMessage());
+                invalid.initCause(e);
+                throw invalid;
+            }
+        }
 
-            return diffKeys;
+        private Object readResolve() {
+            return jMerkle;
         }
     }
 }
\ No newline at end of file
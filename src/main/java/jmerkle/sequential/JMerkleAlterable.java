@@ -36,7 +36,8 @@ public interface JMerkleAlterable {
 
     /**
      * @return Serializable <code>Leaf</code> value that the JMerkle structure
-     *         uses when comparing trees. Its contents get hashed into 20 bytes.
+     *         uses when comparing trees. Its contents get hashed by the tree's
+     *         <code>JMerkleHashFunction</code>.
      */
     abstract Serializable getValue();
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import jmerkle.sequential.JMerkleMarshaler.MarshalOutput;
+
+/**
+ * Keeps a JMerkle off the heap, in a direct buffer (the arena), so that a
+ * large tree amounts to a single buffer rather than a leaf object (and its
+ * two arrays) per key for the garbage collector to trace. The arena holds
+ * node records as laid out by <code>JMerkleMarshaler</code> (format version
+ * 1) and nodes refer to one another by their int positions within it, as
+ * <code>JMerkleStore</code> files do: a branch's child branches are
+ * references (see <code>V1NodeCursor</code>) to records appended earlier.
+ * <code>tree()</code> provides a JMerkle backed by the arena (as per
+ * <code>JMerkleMarshaler.unmarshal(ByteBuffer)</code>), so <code>diff</code>,
+ * <code>allkeys</code> and <code>lookup</code> are served straight from it
+ * and only the nodes they visit are decoded onto the heap, for as long as
+ * they're in use.
+ * <p/>
+ * Alterations are copy-on-write: only the branches on the altered paths are
+ * appended (the arena growing as needed, up to 2GB), after which the root is
+ * switched over to them. Once the arena holds more than
+ * <code>COMPACTION_RATIO</code> times the bytes of its current tree, it is
+ * compacted into a new buffer holding its current tree only. The arena
+ * starts with a marshal header, so when compact its content up to its
+ * current size is the tree's marshaled bytes, which <code>marshal</code>
+ * writes out as is.
+ * <p/>
+ * <code>close()</code> frees the arena's memory right away rather than
+ * leaving it to the garbage collector; the JMerkles <code>tree()</code> and
+ * <code>alter</code> provided must not be used after it. Buffers the arena
+ * grew or was compacted out of are left to the garbage collector, as
+ * JMerkles provided earlier may still read from them.
+ * <p/>
+ * An arena has a single writer: its methods are synchronized.
+ */
+public class JMerkleArena implements Closeable {
+
+    /**
+     * The arena is compacted once its size exceeds this multiple of the
+     * current tree's marshaled size.
+     */
+    public static final int COMPACTION_RATIO = 2;
+
+    /*default*/ static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final JMerkleHashFunction hashFunction;
+
+    private final JMerkleHashScheme scheme;
+
+    private ByteBuffer arena;
+
+    // the number of bytes of the arena in use:
+    private int size;
+
+    // the position of the root's type byte, or 0 if the tree is empty:
+    private int rootPosition;
+
+    /**
+     * Creates an arena holding the provided JMerkle, which may be null (in
+     * which case the arena's trees will be hashed with
+     * <code>JMerkleHashFunction.SHA1</code>).
+     */
+    public JMerkleArena(JMerkle tree) {
+        JMerkle.hashed(tree);
+        this.hashFunction = tree == null ? JMerkleHashFunction.SHA1 : tree.hashFunction;
+        this.scheme = tree == null ? JMerkleHashScheme.CHILD_DIGEST : tree.scheme;
+        this.arena = ByteBuffer.allocateDirect(Math.max(DEFAULT_CAPACITY, JMerkleMarshaler.marshaledSize(tree)));
+        try {
+            MarshalOutput out = new MarshalOutput(new Appender());
+            JMerkleMarshaler.marshalHeader(JMerkleFormat.V1, hashFunction, scheme, out);
+            if (tree != null) {
+                JMerkleMarshaler.marshalNode(tree, out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // only the arena is written to; it doesn't throw:
+            throw new IllegalStateException(e);
+        }
+        this.rootPosition = tree == null ? 0 : JMerkleMarshaler.HEADER_SIZE;
+    }
+
+    /**
+     * @return the arena's current JMerkle, backed by the arena, or null if
+     *         it's empty. The JMerkle remains usable after subsequent
+     *         alterations of the arena (it doesn't see them), but not after
+     *         the arena is closed.
+     */
+    public synchronized JMerkle tree() {
+        checkOpen();
+        if (rootPosition == 0) {
+            return null;
+        }
+        return JMerkleMarshaler.unmarshalLazily(new V1NodeCursor(arena, rootPosition, hashFunction, scheme));
+    }
+
+    /**
+     * Alters the arena's JMerkle as per <code>JMerkle.alter(tree(), alterations)</code>,
+     * appending the altered branches to the arena, and compacts the arena if
+     * it has grown past <code>COMPACTION_RATIO</code>.
+     *
+     * @return the altered JMerkle, backed by the arena, or null if it's
+     *         empty.
+     */
+    public synchronized JMerkle alter(List<? extends JMerkleAlterable> alterations) {
+        JMerkle altered = JMerkle.alter(tree(), alterations, hashFunction);
+        if (altered != null && altered.scheme != scheme) {
+            // a tree grown from empty; keep to the arena's scheme:
+            JMerkle.rehash(altered, scheme);
+        }
+
+        // unaltered branches are those read from the arena as of now (the
+        // arena may grow into a new buffer while the altered ones are appended):
+        ByteBuffer source = arena;
+        try {
+            MarshalOutput out = new MarshalOutput(new Appender());
+            long alteredPosition = altered == null ? 0 : JMerkleStore.append(altered, source, size, out);
+            out.flush();
+            rootPosition = (int) alteredPosition;
+        } catch (IOException e) {
+            // only the arena is written to; it doesn't throw:
+            throw new IllegalStateException(e);
+        }
+
+        if (size > (long) COMPACTION_RATIO * JMerkleMarshaler.marshaledSize(altered)) {
+            compact();
+        }
+        return tree();
+    }
+
+    /**
+     * Copies the current tree into a new buffer, dropping the nodes earlier
+     * alterations left behind. The nodes are copied from the arena without
+     * being unmarshaled.
+     */
+    public synchronized void compact() {
+        checkOpen();
+        int compactedSize = Math.max(JMerkleMarshaler.HEADER_SIZE, JMerkleMarshaler.marshaledSize(tree()));
+        ByteBuffer compacted = ByteBuffer.allocateDirect(Math.max(DEFAULT_CAPACITY, compactedSize));
+        try {
+            MarshalOutput out = new MarshalOutput(compacted, null);
+            JMerkleMarshaler.marshalHeader(JMerkleFormat.V1, hashFunction, scheme, out);
+            if (rootPosition != 0) {
+                JMerkleStore.copy(new V1NodeCursor(arena, rootPosition, hashFunction, scheme), out);
+            }
+        } catch (IOException e) {
+            // there is no channel to throw:
+            throw new IllegalStateException(e);
+        }
+        arena = compacted;
+        size = compacted.position();
+        rootPosition = rootPosition == 0 ? 0 : JMerkleMarshaler.HEADER_SIZE;
+    }
+
+    /**
+     * Marshals the arena's JMerkle as per
+     * <code>JMerkleMarshaler.marshal(tree(), channel)</code>. A compact
+     * arena is written as is; otherwise its nodes are copied out without
+     * being unmarshaled. The channel is not closed.
+     */
+    public synchronized void marshal(WritableByteChannel channel) throws IOException {
+        checkOpen();
+        if (rootPosition == 0) {
+            return;
+        }
+        V1NodeCursor root = new V1NodeCursor(arena, rootPosition, hashFunction, scheme);
+        if (rootPosition == JMerkleMarshaler.HEADER_SIZE && size == rootPosition + root.offset()) {
+            ByteBuffer content = arena.duplicate();
+            content.position(0).limit(size);
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            return;
+        }
+        MarshalOutput out = new MarshalOutput(channel);
+        JMerkleMarshaler.marshalHeader(JMerkleFormat.V1, hashFunction, scheme, out);
+        JMerkleStore.copy(root, out);
+        out.flush();
+    }
+
+    /**
+     * Marshals the arena's JMerkle as per <code>marshal(channel)</code>.
+     */
+    public synchronized byte[] marshal() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+        try {
+            marshal(Channels.newChannel(bytes));
+        } catch (IOException e) {
+            // an in-memory stream doesn't throw:
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the number of bytes of the arena in use.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Frees the arena's memory. Closing a closed arena has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (arena != null) {
+            free(arena);
+            arena = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (arena == null)
+            throw new IllegalStateException("JMerkleArena is closed.");
+    }
+
+    /**
+     * Releases the provided direct buffer's memory, if the runtime allows
+     * (via <code>Unsafe.invokeCleaner</code> or the buffer's cleaner);
+     * otherwise it's left to the garbage collector.
+     */
+    private static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // not available before Java 9; try the buffer's cleaner:
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+
+    /**
+     * Appends to the arena, moving it to a buffer twice the size whenever
+     * it runs out of room.
+     */
+    private final class Appender implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            if (length > arena.capacity() - size) {
+                grow((long) size + length);
+            }
+            ByteBuffer target = arena.duplicate();
+            target.position(size);
+            target.put(src);
+            size += length;
+            return length;
+        }
+
+        private void grow(long required) {
+            if (required > Integer.MAX_VALUE)
+                throw new IllegalStateException("JMerkleArena can't grow past 2GB.");
+            long capacity = arena.capacity();
+            while (capacity < required) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(capacity, Integer.MAX_VALUE));
+            ByteBuffer content = arena.duplicate();
+            content.position(0).limit(size);
+            grown.put(content);
+            arena = grown;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
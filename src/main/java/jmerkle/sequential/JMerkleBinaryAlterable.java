@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A <code>JMerkleAlterable</code> that supplies its key and value as bytes,
+ * sparing the JMerkle structure from Java serializing the value only to hash
+ * it. When a <code>JMerkleBinaryAlterable</code> is altered into a tree, its
+ * <code>getKey()</code> and <code>getValue()</code> are not consulted. <br/>
+ * If the intent of the alteration is to <i>remove</i> a leaf from the tree,
+ * both <code>getValueDigest()</code> and <code>getValueBytes()</code> should
+ * return null.
+ */
+public interface JMerkleBinaryAlterable extends JMerkleAlterable {
+
+    /**
+     * @return bytes representing the identity of a <code>Leaf</code> within a
+     *         JMerkle structure. To interoperate with <code>JMerkleAlterable</code>s
+     *         of the same key, the UTF-8 encoding of <code>getKey()</code>.
+     */
+    abstract byte[] getKeyBytes();
+
+    /**
+     * @return an already computed hash of the value (an ETag, row checksum,
+     *         etc.), or null if <code>getValueBytes()</code> should be hashed
+     *         instead. A digest whose length differs from the tree's
+     *         <code>JMerkleHashFunction</code> width is itself hashed to that
+     *         width; otherwise it is used as is.
+     */
+    abstract byte[] getValueDigest();
+
+    /**
+     * @return the value's bytes (from its position to its limit, which are
+     *         left unchanged) to be hashed by the tree's
+     *         <code>JMerkleHashFunction</code>; consulted only if
+     *         <code>getValueDigest()</code> returns null.
+     */
+    abstract ByteBuffer getValueBytes();
+}
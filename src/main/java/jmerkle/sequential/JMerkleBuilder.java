@@ -0,0 +1,489 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import jmerkle.sequential.JMerkleMarshaler.MarshalOutput;
+
+/**
+ * Builds a JMerkle from scratch, bottom-up: the entries are sorted by their
+ * keys' digests, so each branch is built once its children are and hashed
+ * exactly once, rather than leaves being split into branches (and branches
+ * rehashed) one alteration at a time as <code>JMerkle.alter(null, ...)</code>
+ * does. The result is the JMerkle <code>JMerkle.alter(null, entries)</code>
+ * produces: later entries for a key replace earlier ones and an entry with a
+ * null value removes its key.
+ * <p/>
+ * The entries are read from an <code>Iterator</code>, so they needn't be held
+ * in memory: once more than the spill threshold have been read, they're
+ * spilled to temporary files, a file per first byte of the key digest
+ * (and, for a file still over the threshold, again per next byte), each of
+ * which is then built in turn. Entries already in key digest order are
+ * sorted in linear time. Building into a <code>JMerkleStore</code> also
+ * writes each of those subtrees to the store's file as soon as it's built,
+ * bounding the heap to the spill threshold and to a single subtree.
+ */
+public class JMerkleBuilder {
+
+    /**
+     * The number of entries held in memory (and sorted at once) by default.
+     */
+    public static final int DEFAULT_SPILL_THRESHOLD = 1 << 20;
+
+    private static final Comparator<Alteration> KEY_DIGEST_ORDER = new Comparator<Alteration>() {
+        @Override
+        public int compare(Alteration a1, Alteration a2) {
+            byte[] d1 = a1.keyDigest;
+            byte[] d2 = a2.keyDigest;
+            for (int i = 0; i < d1.length; i++) {
+                // signed, as are the branches' keys:
+                if (d1[i] != d2[i]) {
+                    return d1[i] < d2[i] ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+    };
+
+    private final JMerkleHashFunction hashFunction;
+
+    private final int spillThreshold;
+
+    private final Path tempDirectory;
+
+    public JMerkleBuilder() {
+        this(JMerkleHashFunction.SHA1);
+    }
+
+    public JMerkleBuilder(JMerkleHashFunction hashFunction) {
+        this(hashFunction, DEFAULT_SPILL_THRESHOLD, null);
+    }
+
+    /**
+     * @param tempDirectory where entries are spilled; null for the default
+     *        temporary-file directory.
+     */
+    public JMerkleBuilder(JMerkleHashFunction hashFunction, int spillThreshold, Path tempDirectory) {
+        if (spillThreshold < 1)
+            throw new IllegalArgumentException("spillThreshold must be positive: " + spillThreshold);
+        this.hashFunction = hashFunction;
+        this.spillThreshold = spillThreshold;
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Builds a JMerkle of the provided entries.
+     * 
+     * @return the JMerkle, or null if there are no leaves.
+     */
+    public JMerkle build(Iterator<? extends JMerkleAlterable> entries) throws IOException {
+        final int[] indexes = new int[256];
+        final JMerkle[] children = new JMerkle[256];
+        final int[] count = new int[1];
+        build(entries, new Subtrees() {
+            @Override
+            void add(int index, JMerkle subtree) {
+                indexes[count[0]] = index;
+                children[count[0]++] = subtree;
+            }
+        });
+        return branch(indexes, children, count[0]);
+    }
+
+    /**
+     * Builds a JMerkle of the provided entries into a
+     * <code>JMerkleStore</code> created at the provided path (which must not
+     * exist yet), writing the uppermost branch's subtrees as they're built.
+     */
+    public JMerkleStore build(Iterator<? extends JMerkleAlterable> entries, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            final MarshalOutput out = JMerkleStore.writeHeaders(channel, 0, hashFunction, JMerkleHashScheme.CHILD_DIGEST);
+            // the subtrees are let go once written, keeping what the uppermost branch needs:
+            final int[] indexes = new int[256];
+            final JMerkle[] leaves = new JMerkle[256];
+            final byte[][] hashVals = new byte[256][];
+            final int[] offsets = new int[256];
+            final long[] positions = new long[256];
+            final int[] count = new int[1];
+            build(entries, new Subtrees() {
+                @Override
+                void add(int index, JMerkle subtree) throws IOException {
+                    int i = count[0]++;
+                    indexes[i] = index;
+                    if (subtree.isBranch()) {
+                        hashVals[i] = subtree.hashVal;
+                        offsets[i] = subtree.offset();
+                        positions[i] = out.count();
+                        JMerkleMarshaler.marshalNode(subtree, out);
+                    } else {
+                        leaves[i] = subtree;
+                    }
+                }
+            });
+
+            long rootPosition = out.count();
+            if (count[0] == 0) {
+                rootPosition = 0;
+            } else if (count[0] == 1 && leaves[0] != null) {
+                JMerkleMarshaler.marshalNode(leaves[0], out);
+            } else {
+                writeRoot(indexes, leaves, hashVals, offsets, positions, count[0], out);
+            }
+            out.flush();
+            channel.force(true);
+
+            // now that the nodes are in place, point the store at its root:
+            ByteBuffer root = ByteBuffer.allocate(8);
+            root.putLong(0, rootPosition);
+            channel.write(root, JMerkleStore.ROOT_POSITION);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        return JMerkleStore.open(path);
+    }
+
+    /**
+     * Writes the uppermost branch, referencing its (already written) child
+     * branches as per <code>JMerkleStore</code>.
+     */
+    private void writeRoot(int[] indexes, JMerkle[] leaves, byte[][] hashVals, int[] offsets, long[] positions, int count,
+            MarshalOutput out) throws IOException {
+        int width = hashFunction.width();
+        MessageDigest digest = hashFunction.digest();
+        digest.update(JMerkleHashScheme.CHILD_DIGEST.version);
+        int childBytes = 0;
+        for (int i = 0; i < count; i++) {
+            JMerkle leaf = leaves[i];
+            if (leaf != null) {
+                Branch.digestChild(digest, Branch.key(indexes[i]), false, leaf.hashVal, ((Leaf) leaf).userKey);
+                childBytes += leaf.offset();
+            } else {
+                Branch.digestChild(digest, Branch.key(indexes[i]), true, hashVals[i], null);
+                childBytes += offsets[i];
+            }
+        }
+
+        out.put((byte) 1);
+        out.put(digest.digest());
+        // as per Branch.resize():
+        out.putInt(7 + width + count + childBytes);
+        out.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            out.put(Branch.key(indexes[i]));
+            if (leaves[i] != null) {
+                JMerkleMarshaler.marshalNode(leaves[i], out);
+            } else {
+                out.put(V1NodeCursor.REFERENCE);
+                out.put(hashVals[i]);
+                out.putInt(offsets[i]);
+                out.putLong(positions[i]);
+            }
+        }
+    }
+
+    /**
+     * Receives the subtrees of the uppermost branch, in index order.
+     */
+    private abstract static class Subtrees {
+
+        abstract void add(int index, JMerkle subtree) throws IOException;
+    }
+
+    private void build(Iterator<? extends JMerkleAlterable> entries, Subtrees subtrees) throws IOException {
+        List<Alteration> buffered = new ArrayList<Alteration>();
+        while (entries.hasNext() && buffered.size() < spillThreshold) {
+            buffered.add(Alteration.of(entries.next(), hashFunction));
+        }
+
+        if (!entries.hasNext()) {
+            Alteration[] sorted = sort(buffered);
+            int from = 0;
+            while (from < sorted.length) {
+                int to = groupEnd(sorted, from, sorted.length, 0);
+                subtrees.add(Branch.index(sorted[from].keyDigest[0]), node(sorted, from, to, 1));
+                from = to;
+            }
+            return;
+        }
+
+        Spill spill = new Spill(0);
+        try {
+            for (Alteration alteration : buffered) {
+                spill.write(alteration);
+            }
+            buffered = null;
+            while (entries.hasNext()) {
+                spill.write(Alteration.of(entries.next(), hashFunction));
+            }
+            spill.close();
+            for (int index = 0; index < 256; index++) {
+                if (spill.counts[index] > 0) {
+                    JMerkle subtree = build(spill.files[index], spill.counts[index], 1);
+                    if (subtree != null) {
+                        subtrees.add(index, subtree);
+                    }
+                }
+            }
+        } finally {
+            spill.delete();
+        }
+    }
+
+    /**
+     * Builds the node of the spilled entries, all of whose key digests
+     * share their first depth bytes.
+     */
+    private JMerkle build(Path file, long count, int depth) throws IOException {
+        if (depth == hashFunction.width()) {
+            // a key's alterations all land in the same file, however many there are:
+            return last(file, count);
+        }
+        if (count <= spillThreshold) {
+            List<Alteration> alterations = new ArrayList<Alteration>((int) count);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            try {
+                for (long i = 0; i < count; i++) {
+                    alterations.add(read(in));
+                }
+            } finally {
+                in.close();
+            }
+            Alteration[] sorted = sort(alterations);
+            return sorted.length == 0 ? null : node(sorted, 0, sorted.length, depth);
+        }
+
+        Spill spill = new Spill(depth);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            try {
+                for (long i = 0; i < count; i++) {
+                    spill.write(read(in));
+                }
+            } finally {
+                in.close();
+            }
+            spill.close();
+            int[] indexes = new int[256];
+            JMerkle[] children = new JMerkle[256];
+            int childCount = 0;
+            for (int index = 0; index < 256; index++) {
+                if (spill.counts[index] > 0) {
+                    JMerkle child = build(spill.files[index], spill.counts[index], depth + 1);
+                    if (child != null) {
+                        indexes[childCount] = index;
+                        children[childCount++] = child;
+                    }
+                }
+            }
+            return branch(indexes, children, childCount);
+        } finally {
+            spill.delete();
+        }
+    }
+
+    /**
+     * @return the leaf of the last of the spilled alterations, all of which
+     *         share a key digest (and, unless it collides, a key); null if
+     *         it's a removal.
+     */
+    private JMerkle last(Path file, long count) throws IOException {
+        Alteration last = null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try {
+            for (long i = 0; i < count; i++) {
+                Alteration alteration = read(in);
+                if (last != null && !Arrays.equals(last.key, alteration.key))
+                    throw collision(last, alteration);
+                last = alteration;
+            }
+        } finally {
+            in.close();
+        }
+        return last.hashVal == null ? null : new Leaf(last.key, last.hashVal, hashFunction, JMerkleHashScheme.CHILD_DIGEST);
+    }
+
+    private static IllegalStateException collision(Alteration a1, Alteration a2) {
+        return new IllegalStateException("Key digests collide for keys of " + a1.key.length + " and " + a2.key.length
+                + " bytes.");
+    }
+
+    /**
+     * Sorts the alterations by key digest, keeping each key's last one
+     * (dropping it if it's a removal).
+     */
+    private static Alteration[] sort(List<Alteration> alterations) {
+        // stable, so a key's alterations stay in order:
+        Collections.sort(alterations, KEY_DIGEST_ORDER);
+        Alteration[] sorted = new Alteration[alterations.size()];
+        int count = 0;
+        int size = alterations.size();
+        for (int i = 0; i < size; i++) {
+            Alteration alteration = alterations.get(i);
+            if (i + 1 < size && Arrays.equals(alteration.keyDigest, alterations.get(i + 1).keyDigest)) {
+                if (!Arrays.equals(alteration.key, alterations.get(i + 1).key))
+                    throw collision(alteration, alterations.get(i + 1));
+                // superseded:
+                continue;
+            }
+            if (alteration.hashVal != null) {
+                sorted[count++] = alteration;
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * @return the end of the run of sorted alterations from the provided one
+     *         that share its key digest's byte at the provided depth.
+     */
+    private static int groupEnd(Alteration[] sorted, int from, int to, int depth) {
+        byte key = sorted[from].keyDigest[depth];
+        int end = from + 1;
+        while (end < to && sorted[end].keyDigest[depth] == key) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Builds the node of the sorted alterations in the provided range, all of
+     * whose key digests share their first depth bytes.
+     */
+    private JMerkle node(Alteration[] sorted, int from, int to, int depth) {
+        if (to - from == 1) {
+            Alteration alteration = sorted[from];
+            return new Leaf(alteration.key, alteration.hashVal, hashFunction, JMerkleHashScheme.CHILD_DIGEST);
+        }
+        int[] indexes = new int[256];
+        JMerkle[] children = new JMerkle[256];
+        int count = 0;
+        while (from < to) {
+            int end = groupEnd(sorted, from, to, depth);
+            indexes[count] = Branch.index(sorted[from].keyDigest[depth]);
+            children[count++] = node(sorted, from, end, depth + 1);
+            from = end;
+        }
+        return branch(indexes, children, count);
+    }
+
+    /**
+     * @return a branch of the provided children, hashed once; the lone leaf
+     *         if that's all there is (as <code>Branch.alterInternal</code>
+     *         collapses it); null if there are none.
+     */
+    private JMerkle branch(int[] indexes, JMerkle[] children, int count) {
+        if (count == 0) {
+            return null;
+        }
+        if (count == 1 && !children[0].isBranch()) {
+            return children[0];
+        }
+        Branch branch = new Branch(hashFunction, JMerkleHashScheme.CHILD_DIGEST);
+        branch.setChildren(Arrays.copyOf(indexes, count), Arrays.copyOf(children, count));
+        branch.resize();
+        branch.rehash();
+        return branch;
+    }
+
+    private Alteration read(DataInputStream in) throws IOException {
+        boolean removal = in.readBoolean();
+        byte[] keyDigest = new byte[hashFunction.width()];
+        in.readFully(keyDigest);
+        byte[] hashVal = null;
+        if (!removal) {
+            hashVal = new byte[hashFunction.width()];
+            in.readFully(hashVal);
+        }
+        byte[] key = new byte[in.readInt()];
+        in.readFully(key);
+        return new Alteration(key, keyDigest, hashVal);
+    }
+
+    /**
+     * Temporary files of alterations, one per key digest byte at a depth,
+     * each written in the order the alterations arrive.
+     */
+    private final class Spill {
+
+        private final int depth;
+
+        private final Path[] files = new Path[256];
+
+        private final DataOutputStream[] outs = new DataOutputStream[256];
+
+        private final long[] counts = new long[256];
+
+        Spill(int depth) {
+            this.depth = depth;
+        }
+
+        void write(Alteration alteration) throws IOException {
+            int index = Branch.index(alteration.keyDigest[depth]);
+            DataOutputStream out = outs[index];
+            if (out == null) {
+                files[index] = tempDirectory == null ? Files.createTempFile("jmerkle", ".spill")
+                        : Files.createTempFile(tempDirectory, "jmerkle", ".spill");
+                out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[index])));
+                outs[index] = out;
+            }
+            out.writeBoolean(alteration.hashVal == null);
+            out.write(alteration.keyDigest);
+            if (alteration.hashVal != null) {
+                out.write(alteration.hashVal);
+            }
+            out.writeInt(alteration.key.length);
+            out.write(alteration.key);
+            counts[index]++;
+        }
+
+        void close() throws IOException {
+            for (int index = 0; index < 256; index++) {
+                if (outs[index] != null) {
+                    outs[index].close();
+                    outs[index] = null;
+                }
+            }
+        }
+
+        void delete() throws IOException {
+            close();
+            for (Path file : files) {
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
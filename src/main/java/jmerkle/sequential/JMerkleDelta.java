@@ -0,0 +1,301 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import jmerkle.sequential.JMerkleMarshaler.MarshalOutput;
+
+/**
+ * Encodes and applies deltas between two JMerkles (see
+ * <code>JMerkleMarshaler.marshalDelta</code>). As a node's path is the
+ * prefix of its keys' digests, a subtree that went unchanged resides at the
+ * same path in both trees, so a delta only lists the nodes on the paths
+ * that changed and marks each child that can be reused from the base at
+ * its path. A delta is laid out as
+ * <pre>
+ * magic ('J', 'D') (2) | delta version (1) | hash function id (1) | hash width (1) | hash scheme (1) | trees present (1) | [base hashVal] | [hashVal] | [node]
+ * </pre>
+ * where the trees present are a bit for the base (1) and one for the
+ * resulting tree (2), each followed by the tree's hashVal if set. A node is
+ * <pre>
+ * type (0) | hashVal (width) | userKey size (varint) | userKey
+ * type (1) | number of children - 1 (1) | keys | reused (number of children bits) | child...
+ * type (2)
+ * </pre>
+ * for a leaf, a branch and the reused base root, respectively. A branch's
+ * keys are laid out as per <code>V2NodeCursor</code>; a child whose reused
+ * bit (bit i &amp; 7 of byte i &gt;&gt; 3 for the i-th child) is set is the base's
+ * node at its path and is otherwise written out in turn. Branch hashVals
+ * aren't sent; they're recomputed, and the resulting hashVal is checked.
+ */
+/*default*/ final class JMerkleDelta {
+
+    /*default*/ static final byte MAGIC_0 = 'J';
+
+    /*default*/ static final byte MAGIC_1 = 'D';
+
+    /*default*/ static final byte DELTA_VERSION = 1;
+
+    private static final byte BASE_PRESENT = 1;
+
+    private static final byte PRESENT = 2;
+
+    private static final byte REUSED = 2;
+
+    private JMerkleDelta() {
+    }
+
+    /*default*/ static byte[] marshal(JMerkle base, JMerkle jMerkle) {
+        JMerkle either = base != null ? base : jMerkle;
+        if (either == null) {
+            return new byte[0];
+        }
+        if (base != null && jMerkle != null && (base.hashFunction != jMerkle.hashFunction || base.scheme != jMerkle.scheme))
+            throw new IllegalArgumentException("JMerkles are hashed differently (JMerkleHashFunction " + base.hashFunction.id()
+                    + " and " + jMerkle.hashFunction.id() + ", JMerkleHashScheme " + base.scheme + " and " + jMerkle.scheme + ")");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            marshal(JMerkle.hashed(base), JMerkle.hashed(jMerkle), either, new MarshalOutput(Channels.newChannel(bytes)));
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw:
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void marshal(JMerkle base, JMerkle jMerkle, JMerkle either, MarshalOutput out) throws IOException {
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(DELTA_VERSION);
+        out.put((byte) either.hashFunction.id());
+        out.put((byte) either.hashFunction.width());
+        out.put(either.scheme.version);
+        out.put((byte) ((base != null ? BASE_PRESENT : 0) | (jMerkle != null ? PRESENT : 0)));
+        if (base != null) {
+            out.put(base.hashVal);
+        }
+        if (jMerkle != null) {
+            out.put(jMerkle.hashVal);
+            if (reusable(base, jMerkle)) {
+                out.put(REUSED);
+            } else {
+                marshalNode(base, jMerkle, out);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return whether the provided node is the provided base node (which may
+     *         be null) residing at the same path.
+     */
+    private static boolean reusable(JMerkle base, JMerkle node) {
+        if (base == null || base.isBranch() != node.isBranch() || !Arrays.equals(base.hashVal, node.hashVal)) {
+            return false;
+        }
+        // a leaf's hashVal covers its value alone:
+        return node.isBranch() || Arrays.equals(((Leaf) base).userKey, ((Leaf) node).userKey);
+    }
+
+    /**
+     * Writes the provided node, which the provided base node (residing at
+     * the same path, possibly null) can't stand in for.
+     */
+    private static void marshalNode(JMerkle base, JMerkle node, MarshalOutput out) throws IOException {
+        if (!node.isBranch()) {
+            byte[] userKey = ((Leaf) node).userKey;
+            out.put((byte) 0);
+            out.put(node.hashVal);
+            out.putVarint(userKey.length);
+            out.put(userKey);
+            return;
+        }
+
+        Branch branch = (Branch) node;
+        Branch baseBranch = base != null && base.isBranch() ? (Branch) base : null;
+        JMerkle[] children = branch.childNodes();
+        out.put((byte) 1);
+        out.put((byte) (children.length - 1));
+
+        JMerkle[] baseChildren = new JMerkle[children.length];
+        byte[] reused = new byte[(children.length + 7) >> 3];
+        int position = 0;
+        if (children.length >= V2NodeCursor.BITMAP_THRESHOLD) {
+            byte[] bitmap = new byte[32];
+            for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+                bitmap[index >> 3] |= 1 << (index & 7);
+                baseChildren[position++] = baseBranch == null ? null : baseBranch.child(index);
+            }
+            out.put(bitmap);
+        } else {
+            for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+                out.put((byte) index);
+                baseChildren[position++] = baseBranch == null ? null : baseBranch.child(index);
+            }
+        }
+        for (int i = 0; i < children.length; i++) {
+            if (reusable(baseChildren[i], children[i])) {
+                reused[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        out.put(reused);
+
+        for (int i = 0; i < children.length; i++) {
+            if ((reused[i >> 3] & (1 << (i & 7))) == 0) {
+                marshalNode(baseChildren[i], children[i], out);
+            }
+        }
+    }
+
+    /*default*/ static JMerkle apply(JMerkle base, byte[] delta) {
+        try {
+            return applyDelta(base, delta);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("JMerkle delta is truncated and is therefore corrupt.", e);
+        } catch (IndexOutOfBoundsException e) {
+            // a varint read past the end:
+            throw new IllegalArgumentException("JMerkle delta is truncated and is therefore corrupt.", e);
+        } catch (NegativeArraySizeException e) {
+            throw new IllegalArgumentException("JMerkle delta has a negative userKey size and is therefore corrupt.", e);
+        } catch (IllegalStateException e) {
+            // a corrupt delta, or one of an unrecognized scheme version:
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    private static JMerkle applyDelta(JMerkle base, byte[] delta) {
+        if (delta.length == 0) {
+            if (base != null)
+                throw new IllegalArgumentException("Empty JMerkle delta applies to a null base only.");
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        if (delta.length < 7 || in.get() != MAGIC_0 || in.get() != MAGIC_1)
+            throw new IllegalStateException("JMerkle delta has an unrecognized header and is therefore corrupt.");
+        byte deltaVersion = in.get();
+        if (deltaVersion != DELTA_VERSION)
+            throw new IllegalStateException("JMerkle delta has unsupported version " + deltaVersion + ".");
+        int hashFunctionId = in.get() & 0xFF;
+        JMerkleHashFunction hashFunction = JMerkleHashFunction.forId(hashFunctionId);
+        if (hashFunction == null)
+            throw new IllegalStateException("JMerkle delta uses unregistered JMerkleHashFunction " + hashFunctionId + ".");
+        int width = in.get() & 0xFF;
+        if (width != hashFunction.width())
+            throw new IllegalStateException("JMerkle delta declares a " + width + " byte hash, but JMerkleHashFunction "
+                    + hashFunctionId + " is " + hashFunction.width() + " bytes; it is therefore corrupt.");
+        JMerkleHashScheme scheme = JMerkleHashScheme.forVersion(in.get());
+        byte present = in.get();
+
+        if ((present & BASE_PRESENT) == 0) {
+            if (base != null)
+                throw new IllegalArgumentException("JMerkle delta applies to a null base only.");
+        } else {
+            if (base == null)
+                throw new IllegalArgumentException("JMerkle delta requires a base.");
+            if (base.hashFunction != hashFunction || base.scheme != scheme)
+                throw new IllegalArgumentException("JMerkle delta is hashed differently from its base (JMerkleHashFunction "
+                        + hashFunctionId + ", JMerkleHashScheme " + scheme + ").");
+            byte[] baseHashVal = new byte[width];
+            in.get(baseHashVal);
+            if (!Arrays.equals(baseHashVal, JMerkle.hashed(base).hashVal))
+                throw new IllegalArgumentException("JMerkle delta was marshaled against a different base.");
+        }
+        if ((present & PRESENT) == 0) {
+            return null;
+        }
+
+        byte[] hashVal = new byte[width];
+        in.get(hashVal);
+        JMerkle jMerkle;
+        if (in.get(in.position()) == REUSED) {
+            jMerkle = base;
+        } else {
+            jMerkle = applyNode(base, in, hashFunction, scheme);
+        }
+        if (jMerkle == null || !Arrays.equals(hashVal, jMerkle.hashVal))
+            throw new IllegalStateException("JMerkle delta does not reproduce its hashVal and is therefore corrupt.");
+        return jMerkle;
+    }
+
+    /**
+     * Reads the node at the buffer's position, reusing the children of the
+     * provided base node (residing at the same path, possibly null) as
+     * marked.
+     */
+    private static JMerkle applyNode(JMerkle base, ByteBuffer in, JMerkleHashFunction hashFunction, JMerkleHashScheme scheme) {
+        byte type = in.get();
+        if (type == 0) {
+            byte[] hashVal = new byte[hashFunction.width()];
+            in.get(hashVal);
+            byte[] userKey = new byte[V2NodeCursor.getVarint(in)];
+            in.get(userKey);
+            return new Leaf(userKey, hashVal, hashFunction, scheme);
+        }
+        if (type != 1)
+            throw new IllegalStateException("JMerkle delta has a node of unrecognized type " + type + " and is therefore corrupt.");
+
+        Branch baseBranch = base != null && base.isBranch() ? (Branch) base : null;
+        int numberOfChildren = (in.get() & 0xFF) + 1;
+        int[] indexes = new int[numberOfChildren];
+        if (numberOfChildren >= V2NodeCursor.BITMAP_THRESHOLD) {
+            byte[] bitmap = new byte[32];
+            in.get(bitmap);
+            int position = 0;
+            for (int index = 0; index < 256; index++) {
+                if ((bitmap[index >> 3] & (1 << (index & 7))) != 0) {
+                    if (position == numberOfChildren)
+                        throw new IllegalStateException("JMerkle delta has a branch with more keys than children and is therefore corrupt.");
+                    indexes[position++] = index;
+                }
+            }
+            if (position != numberOfChildren)
+                throw new IllegalStateException("JMerkle delta has a branch with fewer keys than children and is therefore corrupt.");
+        } else {
+            for (int i = 0; i < numberOfChildren; i++) {
+                indexes[i] = in.get() & 0xFF;
+                if (i > 0 && indexes[i] <= indexes[i - 1])
+                    throw new IllegalStateException("JMerkle delta has out of order branch keys and is therefore corrupt.");
+            }
+        }
+        byte[] reused = new byte[(numberOfChildren + 7) >> 3];
+        in.get(reused);
+
+        JMerkle[] children = new JMerkle[numberOfChildren];
+        for (int i = 0; i < numberOfChildren; i++) {
+            JMerkle baseChild = baseBranch == null ? null : baseBranch.child(indexes[i]);
+            if ((reused[i >> 3] & (1 << (i & 7))) != 0) {
+                if (baseChild == null)
+                    throw new IllegalStateException("JMerkle delta reuses a node its base doesn't have and is therefore corrupt.");
+                children[i] = baseChild;
+            } else {
+                children[i] = applyNode(baseChild, in, hashFunction, scheme);
+            }
+        }
+
+        Branch branch = new Branch(hashFunction, scheme);
+        branch.setChildren(indexes, children);
+        branch.resize();
+        branch.rehash();
+        return branch;
+    }
+}
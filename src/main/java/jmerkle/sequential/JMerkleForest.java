@@ -0,0 +1,300 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A JMerkle split into segments by the leading bits of its keys' digests
+ * (the bits <code>Branch</code> routes a key by, taken in the same order),
+ * each of which is a JMerkle of its own: segments are altered independently
+ * (under a lock per segment, so alterations of different segments proceed
+ * in parallel) and can be diffed, marshaled and replaced on their own, e.g.
+ * to repair just the ranges of the key digest space a replica owns. Each
+ * segment is altered as per <code>JMerkle.alterPersistent</code>, so the
+ * JMerkle a segment holds at any point remains a valid snapshot that may be
+ * read without locking.
+ * <p/>
+ * The forest's root hash digests those of its segments (along with the
+ * number of segment bits), so forests can be compared as a whole before
+ * their segments are.
+ */
+public class JMerkleForest {
+
+    /*default*/ static final byte FOREST_VERSION = 1;
+
+    // the most segment bits: the first two bytes of the key digests.
+    public static final int MAX_SEGMENT_BITS = 16;
+
+    private final int segmentBits;
+
+    private final JMerkleHashFunction hashFunction;
+
+    private final AtomicReferenceArray<JMerkle> trees;
+
+    private final Object[] locks;
+
+    /**
+     * Creates an empty forest of 2^segmentBits segments, hashed with
+     * <code>JMerkleHashFunction.SHA1</code>.
+     */
+    public JMerkleForest(int segmentBits) {
+        this(segmentBits, JMerkleHashFunction.SHA1);
+    }
+
+    /**
+     * Creates an empty forest of 2^segmentBits segments, hashed with the
+     * provided hashFunction, whose digests must have at least segmentBits
+     * bits (i.e. a one byte function allows up to 8).
+     */
+    public JMerkleForest(int segmentBits, JMerkleHashFunction hashFunction) {
+        if (segmentBits < 0 || segmentBits > MAX_SEGMENT_BITS)
+            throw new IllegalArgumentException("segmentBits must be between 0 and " + MAX_SEGMENT_BITS + ": " + segmentBits);
+        if (hashFunction.width() * 8 < segmentBits)
+            throw new IllegalArgumentException("JMerkleHashFunction " + hashFunction.id() + " is too narrow for " + segmentBits
+                    + " segment bits.");
+        this.segmentBits = segmentBits;
+        this.hashFunction = hashFunction;
+        int segments = 1 << segmentBits;
+        this.trees = new AtomicReferenceArray<JMerkle>(segments);
+        this.locks = new Object[segments];
+        for (int i = 0; i < segments; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public int segmentBits() {
+        return segmentBits;
+    }
+
+    public int segments() {
+        return trees.length();
+    }
+
+    /**
+     * @return the segment the provided key (encoded as UTF-8) resides in.
+     */
+    public int segmentOf(String key) {
+        return segmentOf(key.getBytes(JMerkle.UTF8));
+    }
+
+    /**
+     * @return the segment the provided key resides in.
+     */
+    public int segmentOf(byte[] key) {
+        return segmentOfDigest(JMerkle.keyDigest(hashFunction, key));
+    }
+
+    private int segmentOfDigest(byte[] keyDigest) {
+        if (segmentBits == 0) {
+            return 0;
+        }
+        // ordered as Branch orders its children (i.e. by signed byte, at
+        // either level); the second byte is only read when needed, as a
+        // one byte function has none:
+        if (segmentBits <= 8) {
+            return Branch.index(keyDigest[0]) >>> (8 - segmentBits);
+        }
+        int leading = Branch.index(keyDigest[0]) << 8 | Branch.index(keyDigest[1]);
+        return leading >>> (MAX_SEGMENT_BITS - segmentBits);
+    }
+
+    /**
+     * @return the provided segment's JMerkle, or null if it has no leaves.
+     *         It isn't altered further.
+     */
+    public JMerkle tree(int segment) {
+        return trees.get(segment);
+    }
+
+    /**
+     * Alters the forest's leaves using the provided list of
+     * JMerkleAlterable values as per <code>JMerkle.alter</code>; each
+     * segment's alterations are applied under the segment's lock.
+     */
+    public void alter(List<? extends JMerkleAlterable> alterations) {
+        List<Alteration>[] bySegment = partition(alterations);
+        for (int segment = 0; segment < bySegment.length; segment++) {
+            if (bySegment[segment] != null) {
+                alter(segment, bySegment[segment]);
+            }
+        }
+    }
+
+    /**
+     * Alters the forest as per <code>alter(alterations)</code>, but alters
+     * the segments concurrently using the provided executor (e.g. a
+     * <code>ForkJoinPool</code>).
+     */
+    public void alterParallel(List<? extends JMerkleAlterable> alterations, ExecutorService executor) {
+        List<Alteration>[] bySegment = partition(alterations);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int segment = 0; segment < bySegment.length; segment++) {
+            if (bySegment[segment] != null) {
+                final int alteredSegment = segment;
+                final List<Alteration> segmentAlterations = bySegment[segment];
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        alter(alteredSegment, segmentAlterations);
+                        return null;
+                    }
+                });
+            }
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while altering the forest's segments.", e);
+        } catch (ExecutionException e) {
+            // nothing recoverable; throw a runtime exception:
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private List<Alteration>[] partition(List<? extends JMerkleAlterable> alterations) {
+        List<Alteration>[] bySegment = new List[segments()];
+        for (Alteration alteration : Alteration.of(alterations, hashFunction, AlterContext.SEQUENTIAL)) {
+            int segment = segmentOfDigest(alteration.keyDigest);
+            if (bySegment[segment] == null) {
+                bySegment[segment] = new ArrayList<Alteration>();
+            }
+            bySegment[segment].add(alteration);
+        }
+        return bySegment;
+    }
+
+    private void alter(int segment, List<Alteration> alterations) {
+        synchronized (locks[segment]) {
+            trees.set(segment, JMerkle.alterResolved(trees.get(segment), alterations, hashFunction, AlterContext.PERSISTENT));
+        }
+    }
+
+    /**
+     * Replaces the provided segment's JMerkle (e.g. with one repaired from a
+     * replica's), which may be null. Its keys must all reside in the
+     * segment (see <code>segmentOf</code>); it is left intact by subsequent
+     * alterations.
+     * 
+     * @throws IllegalArgumentException if it's hashed with another
+     *         <code>JMerkleHashFunction</code>.
+     */
+    public void replace(int segment, JMerkle tree) {
+        if (tree != null && tree.hashFunction != hashFunction)
+            throw new IllegalArgumentException("JMerkle is hashed with JMerkleHashFunction " + tree.hashFunction.id() + ", not "
+                    + hashFunction.id());
+        synchronized (locks[segment]) {
+            trees.set(segment, JMerkle.hashed(tree));
+        }
+    }
+
+    /**
+     * @return the provided segment's root hash as per
+     *         <code>JMerkle.rootHash</code>; null if it has no leaves.
+     */
+    public byte[] rootHash(int segment) {
+        return JMerkle.rootHash(tree(segment));
+    }
+
+    /**
+     * @return the forest's root hash: the digest of the number of segment
+     *         bits followed, per segment with leaves, by its index (2 bytes)
+     *         and root hash (and, as a single leaf's root hash is its
+     *         value's, by the leaf's userKey size (4 bytes) and userKey).
+     */
+    public byte[] rootHash() {
+        MessageDigest digest = hashFunction.digest();
+        digest.update(FOREST_VERSION);
+        digest.update((byte) segmentBits);
+        for (int segment = 0; segment < segments(); segment++) {
+            JMerkle tree = tree(segment);
+            if (tree != null) {
+                digest.update((byte) (segment >>> 8));
+                digest.update((byte) segment);
+                digest.update(tree.hashVal);
+                if (tree instanceof Leaf) {
+                    byte[] userKey = ((Leaf) tree).userKey;
+                    digest.update(ByteBuffer.allocate(4).putInt(userKey.length).array());
+                    digest.update(userKey);
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Marshals the provided segment's JMerkle as per
+     * <code>JMerkleMarshaler.marshal(jMerkle, format)</code>; its bytes are
+     * unmarshaled by <code>JMerkleMarshaler</code> as any other's.
+     */
+    public byte[] marshal(int segment, JMerkleFormat format) {
+        return JMerkleMarshaler.marshal(tree(segment), format);
+    }
+
+    /**
+     * Provides the unique leaves between the provided segment of the two
+     * forests as per <code>JMerkle.diff</code>.
+     * 
+     * @throws IllegalArgumentException if the forests are segmented or
+     *         hashed differently.
+     */
+    public static List<String> diff(JMerkleForest f1, JMerkleForest f2, int segment) {
+        checkComparable(f1, f2);
+        return JMerkle.diff(f1.tree(segment), f2.tree(segment));
+    }
+
+    /**
+     * Provides the unique leaves between the two forests, skipping the
+     * segments whose uppermost branches' hashes are equal.
+     * 
+     * @throws IllegalArgumentException if the forests are segmented or
+     *         hashed differently.
+     */
+    public static List<String> diff(JMerkleForest f1, JMerkleForest f2) {
+        checkComparable(f1, f2);
+        List<String> diff = new ArrayList<String>();
+        for (int segment = 0; segment < f1.segments(); segment++) {
+            JMerkle t1 = f1.tree(segment);
+            JMerkle t2 = f2.tree(segment);
+            // a single leaf's hash doesn't cover its key, so leaves are always diffed:
+            if (!(t1 instanceof Branch && t2 instanceof Branch && Arrays.equals(t1.hashVal, t2.hashVal))) {
+                diff.addAll(JMerkle.diff(t1, t2));
+            }
+        }
+        return diff.isEmpty() ? Collections.<String> emptyList() : diff;
+    }
+
+    private static void checkComparable(JMerkleForest f1, JMerkleForest f2) {
+        if (f1.segmentBits != f2.segmentBits || f1.hashFunction != f2.hashFunction)
+            throw new IllegalArgumentException("JMerkleForests are segmented or hashed differently (" + f1.segmentBits + " and "
+                    + f2.segmentBits + " segment bits, JMerkleHashFunction " + f1.hashFunction.id() + " and "
+                    + f2.hashFunction.id() + ").");
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+/**
+ * Identifies the binary format <code>JMerkleMarshaler</code> marshals a
+ * JMerkle in. Every format is read back by <code>JMerkleMarshaler</code>,
+ * which recognizes it from the marshaled header.
+ */
+public enum JMerkleFormat {
+
+    /**
+     * The original format: each node is written with its type, hashVal and
+     * fixed size ints for its size (branch) or userKey size (leaf), and each
+     * child is preceded by its key. Every branch's marshaled size is known
+     * without marshaling it, so it is the format the streaming and
+     * presized marshal operations default to, and the one stores are kept in.
+     */
+    V1((byte) 1, (byte) 0),
+
+    /**
+     * A compact format: sizes are varints, each branch lists its children's
+     * keys up front (as a 256 bit bitmap once it has 32 or more children)
+     * and a node's type shares a varint with its size.
+     */
+    V2((byte) 2, (byte) 0),
+
+    /**
+     * <code>V2</code>, where each branch also factors out the common prefix
+     * of its leaves' userKeys, which pays off for keys with a common
+     * structure (e.g. "inventory/widget1234").
+     */
+    V2_SHARED_PREFIXES((byte) 2, JMerkleFormat.SHARED_PREFIXES),
+
+    /**
+     * <code>V2</code>, where each chain of branches holding a single child
+     * branch (keys whose digests share more than a branch's worth of prefix)
+     * is written as a single node: the chain's keys (the digest bytes it
+     * skips) and hashVals, followed by the branch it leads to.
+     */
+    V2_COMPRESSED_PATHS((byte) 2, JMerkleFormat.COMPRESSED_PATHS),
+
+    /**
+     * <code>V2</code> with both shared prefixes and compressed paths.
+     */
+    V2_COMPACT((byte) 2, (byte) (JMerkleFormat.SHARED_PREFIXES | JMerkleFormat.COMPRESSED_PATHS));
+
+    // V2 header flag: branches carry the common prefix of their leaves' userKeys.
+    /*default*/ static final byte SHARED_PREFIXES = 1;
+
+    // V2 header flag: chains of single child branches are written as a single node.
+    /*default*/ static final byte COMPRESSED_PATHS = 2;
+
+    /*default*/ final byte version;
+
+    /*default*/ final byte flags;
+
+    private JMerkleFormat(byte version, byte flags) {
+        this.version = version;
+        this.flags = flags;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Service provider for the digest a JMerkle structure hashes its keys, values
+ * and branches with. A tree uses a single <code>JMerkleHashFunction</code> for
+ * its lifetime; it is chosen when the tree is created and is identified by
+ * its id in the marshaled format. <br/>
+ * Implementations supply <code>MessageDigest</code>s via {@link #newDigest()};
+ * each thread reuses a single instance per function rather than looking one
+ * up for every hash. Custom implementations must be {@link #register registered}
+ * under an unused id to be unmarshaled.
+ */
+public abstract class JMerkleHashFunction {
+
+    /**
+     * 20 byte SHA-1; the digest used by earlier releases (and by trees
+     * marshaled without a header).
+     */
+    public static final JMerkleHashFunction SHA1 = new JcaHashFunction(1, "SHA-1", 20);
+
+    /**
+     * 32 byte SHA-256.
+     */
+    public static final JMerkleHashFunction SHA256 = new JcaHashFunction(2, "SHA-256", 32);
+
+    /**
+     * 16 byte, non-cryptographic MurmurHash3 (x64, 128 bit variant, seed 0).
+     */
+    public static final JMerkleHashFunction MURMUR3_128 = new JMerkleHashFunction(3, 16) {
+        @Override
+        protected MessageDigest newDigest() {
+            return new Murmur3Digest();
+        }
+    };
+
+    private static final JMerkleHashFunction[] REGISTRY = new JMerkleHashFunction[256];
+
+    static {
+        register(SHA1);
+        register(SHA256);
+        register(MURMUR3_128);
+    }
+
+    private final byte id;
+
+    private final int width;
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    /**
+     * @param id unique identifier written to the marshaled format; 0 through 255.
+     * @param width number of bytes produced by the function's digests; 1 through 255.
+     */
+    protected JMerkleHashFunction(int id, int width) {
+        if (id < 0 || id > 255)
+            throw new IllegalArgumentException("JMerkleHashFunction id must be between 0 and 255: " + id);
+        if (width < 1 || width > 255)
+            throw new IllegalArgumentException("JMerkleHashFunction width must be between 1 and 255: " + width);
+        this.id = (byte) id;
+        this.width = width;
+    }
+
+    /**
+     * @return a new <code>MessageDigest</code> producing {@link #width()} bytes.
+     *         Invoked at most once per thread.
+     */
+    protected abstract MessageDigest newDigest();
+
+    public final int id() {
+        return id & 0xFF;
+    }
+
+    public final int width() {
+        return width;
+    }
+
+    /**
+     * Makes the provided function available to <code>JMerkleMarshaler</code>
+     * by its id. Registering the same function more than once has no effect.
+     * 
+     * @throws IllegalArgumentException if a different function is already
+     *         registered under the same id.
+     */
+    public static void register(JMerkleHashFunction hashFunction) {
+        synchronized (REGISTRY) {
+            JMerkleHashFunction registered = REGISTRY[hashFunction.id()];
+            if (registered != null && registered != hashFunction)
+                throw new IllegalArgumentException("A JMerkleHashFunction is already registered with id " + hashFunction.id());
+            REGISTRY[hashFunction.id()] = hashFunction;
+        }
+    }
+
+    /**
+     * @return the function registered under the provided id, or null if there
+     *         is none.
+     */
+    public static JMerkleHashFunction forId(int id) {
+        synchronized (REGISTRY) {
+            return REGISTRY[id & 0xFF];
+        }
+    }
+
+    /**
+     * Returns the calling thread's digest for this function, reset and ready
+     * for use. The digest must not be retained, nor used across another
+     * invocation on the same thread.
+     */
+    /*default*/ final MessageDigest digest() {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest;
+    }
+
+    /*default*/ final byte[] hash(byte[] bytes) {
+        return digest().digest(bytes);
+    }
+
+    /**
+     * <code>JMerkleHashFunction</code> backed by a JCA <code>MessageDigest</code>
+     * algorithm.
+     */
+    private static class JcaHashFunction extends JMerkleHashFunction {
+
+        private final String algorithm;
+
+        JcaHashFunction(int id, String algorithm, int width) {
+            super(id, width);
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        protected MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
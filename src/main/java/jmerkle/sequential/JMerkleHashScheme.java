@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+/**
+ * Identifies how a <code>Branch</code>'s hashVal is derived. <code>Leaf</code>
+ * hashVals (the hash of the leaf's value) are the same under every scheme.
+ */
+public enum JMerkleHashScheme {
+
+    /**
+     * The original scheme: a <code>Branch</code>'s hashVal is the hash of the
+     * Java serialized <code>Branch</code>, meaning its entire subtree gets
+     * serialized every time it is rehashed. Retained so that trees produced
+     * by earlier releases can still be read, altered and compared.
+     */
+    SERIALIZED((byte) 0),
+
+    /**
+     * A <code>Branch</code>'s hashVal is the hash of the scheme's version
+     * followed by its ordered children, each as its key, its type (1 for a
+     * <code>Branch</code>, 0 for a <code>Leaf</code>) and its hashVal, then,
+     * for a <code>Leaf</code>, its userKey's length (4, big-endian) and
+     * userKey. Rehashing a <code>Branch</code> therefore only costs its
+     * immediate children.
+     */
+    CHILD_DIGEST((byte) 1);
+
+    /*default*/ final byte version;
+
+    private JMerkleHashScheme(byte version) {
+        this.version = version;
+    }
+
+    /*default*/ static JMerkleHashScheme forVersion(byte version) {
+        for (JMerkleHashScheme scheme : values()) {
+            if (scheme.version == version) {
+                return scheme;
+            }
+        }
+        throw new IllegalStateException("Unrecognized JMerkleHashScheme version " + version + ".");
+    }
+}
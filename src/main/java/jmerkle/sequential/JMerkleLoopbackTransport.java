@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+/**
+ * Hands requests straight to an in-memory <code>JMerkleSyncResponder</code>
+ * (e.g. to test a sync, or to compare two local trees as a remote peer
+ * would), tallying the exchanges and the bytes exchanged.
+ */
+public class JMerkleLoopbackTransport implements JMerkleTransport {
+
+    private final JMerkleSyncResponder responder;
+
+    private int exchanges;
+
+    private long requestBytes;
+
+    private long responseBytes;
+
+    public JMerkleLoopbackTransport(JMerkleSyncResponder responder) {
+        this.responder = responder;
+    }
+
+    @Override
+    public synchronized byte[] exchange(byte[] request) {
+        byte[] response = responder.respond(request);
+        exchanges++;
+        requestBytes += request.length;
+        responseBytes += response.length;
+        return response;
+    }
+
+    /**
+     * @return the number of requests exchanged so far.
+     */
+    public synchronized int exchanges() {
+        return exchanges;
+    }
+
+    public synchronized long requestBytes() {
+        return requestBytes;
+    }
+
+    public synchronized long responseBytes() {
+        return responseBytes;
+    }
+}
@@ -15,128 +15,511 @@
  */
 package jmerkle.sequential;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * Marshals and unmarshals JMerkle structures. A marshaled structure begins
+ * with a header:
+ * <pre>
+ * magic ('J', 'M') (2) | format version (1) | hash function id (1) | hash width (1) | hash scheme (1)
+ * </pre>
+ * followed, in format version 2, by a flags byte, then by its uppermost node
+ * as laid out by the format (see <code>JMerkleFormat</code>), which defaults
+ * to version 1. Structures marshaled by earlier releases
+ * have no header (their first byte is the uppermost node's type, i.e. 0 or 1);
+ * they are unmarshaled as <code>JMerkleHashFunction.SHA1</code> with their
+ * <code>JMerkleHashScheme</code> detected from the uppermost branch.
+ * Marshaled structures can also be diffed and inspected in place.
+ */
 public class JMerkleMarshaler {
 
-    public static JMerkle unmarshal(byte[] treeBytes) throws Exception {
-        ByteArrayInputStream bais = new ByteArrayInputStream(treeBytes);
-        DataInputStream dis = new DataInputStream(bais);
+    /*default*/ static final byte MAGIC_0 = 'J';
 
-        boolean isBranch = dis.readBoolean();
-        // get the uppermost node's hashVal:
-        byte[] hashVal = new byte[20];
-        int bufferBytesRead = dis.read(hashVal);
-        
-        if(bufferBytesRead != 20)
-            throw new IllegalStateException("Marshaled JMerkle binary does not contain a 20 byte hash and is therefore corrupt.");
+    /*default*/ static final byte MAGIC_1 = 'M';
 
-        JMerkle jMerkle = null;
+    /*default*/ static final int HEADER_SIZE = 6;
 
-        if (isBranch) {
-            int offset = dis.readInt();
-            short numberOfChildren = dis.readShort();
-            jMerkle = new Branch();
-            jMerkle.hashVal = hashVal;
-            ((Branch) jMerkle).offset = offset;
-            unmarshalChildren(dis, (Branch) jMerkle, numberOfChildren);
-        } else {
-            jMerkle = unmarshalLeaf(dis, hashVal);
+    // format version 2 appends a flags byte:
+    /*default*/ static final int V2_HEADER_SIZE = 7;
+
+    // the size of the buffers marshaled structures are streamed through:
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> STREAM_BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
         }
-        return jMerkle;
+    };
+
+    public static JMerkle unmarshal(byte[] treeBytes) throws Exception {
+        NodeCursor root = cursor(ByteBuffer.wrap(treeBytes));
+        if (root == null)
+            throw new EOFException("Marshaled JMerkle binary is empty.");
+        return unmarshal(root);
     }
 
-    private static JMerkle unmarshalChildren(DataInput in, Branch parent, int childCount) throws Exception {
-        for (short i = 0; i < childCount; i++) {
-            // next byte is the key the following unmarshaled
-            // child should reside under in the parent's HashMap:
-            byte key = in.readByte();
-            // next boolean is the type
-            boolean childIsBranch = in.readBoolean();
-            // next 20 Bytes are the child's hashVal:
-            byte[] hashVal = new byte[20];
-            in.readFully(hashVal);
+    /**
+     * Lazily unmarshals the marshaled structure starting at the buffer's
+     * position (without moving it): the uppermost node is decoded right
+     * away, but a branch's children are only decoded the first time an
+     * operation (<code>diff</code>, <code>allkeys</code>, <code>lookup</code>,
+     * <code>alter</code>, etc.) reaches them, so the cost of unmarshaling
+     * follows the part of the tree that gets visited. The JMerkle reads
+     * from the buffer (which may be a memory mapped file) for as long as it
+     * is in use; the buffer's content must not change in the meantime.
+     * 
+     * @return the JMerkle, or null if the buffer has no remaining bytes.
+     */
+    public static JMerkle unmarshal(ByteBuffer buffer) {
+        NodeCursor root = cursor(buffer);
+        return root == null ? null : unmarshalLazily(root);
+    }
 
-            if (childIsBranch) {
-                // next int is the inclusive byte size of the branch
-                int offset = in.readInt();
-                // next short is the total number of children
-                // (not to exceed 256):
-                short numberOfChildren = in.readShort();
-                Branch childBranch = new Branch();
-                childBranch.offset = offset;
-                childBranch.hashVal = hashVal;
-                parent.children.put(key, unmarshalChildren(in, childBranch, numberOfChildren));
+    /**
+     * @return the node the provided cursor is on, with its children (if it's
+     *         a branch) left to be decoded once they're needed.
+     */
+    /*default*/ static JMerkle unmarshalLazily(NodeCursor node) {
+        return node.isBranch() ? new Branch(node) : new Leaf(node.userKey(), node.hashVal(), node.hashFunction, node.scheme);
+    }
+
+    /**
+     * Provides the unique leaves between the two marshaled JMerkle
+     * structures as per <code>JMerkle.diff(t1, t2)</code>, reading each
+     * buffer (from its position to its limit) in place: hashes are compared
+     * where they lie and subtrees whose hashes are equal are skipped over
+     * without being read. Only the keys produced are allocated, so the
+     * buffers may be memory mapped files of any size. Empty buffers
+     * represent null JMerkles.
+     */
+    public static List<String> diff(ByteBuffer t1, ByteBuffer t2) {
+        JMerkle.StringCollector diff = new JMerkle.StringCollector();
+        diff(t1, t2, diff);
+        return diff.keys;
+    }
+
+    /**
+     * Passes the keys of the unique leaves between the two marshaled JMerkle
+     * structures to the provided visitor as per
+     * <code>diff(t1, t2)</code> and <code>JMerkle.diff(t1, t2, visitor)</code>.
+     * The visitor is passed newly allocated keys, which it may retain.
+     * 
+     * @return <code>true</code> if every unique leaf was visited;
+     *         <code>false</code> if the visitor stopped the diff.
+     */
+    public static boolean diff(ByteBuffer t1, ByteBuffer t2, JMerkleVisitor visitor) {
+        NodeCursor c1 = cursor(t1);
+        NodeCursor c2 = cursor(t2);
+        if(c1 != null) {
+            if(c2 != null) {
+                if(c1.hashFunction != c2.hashFunction)
+                    throw new IllegalArgumentException("Marshaled JMerkles are hashed with different JMerkleHashFunctions ("
+                            + c1.hashFunction.id() + " and " + c2.hashFunction.id() + ")");
+                return NodeCursor.diff(0, c1, c2, visitor);
             } else {
-                parent.children.put(key, unmarshalLeaf(in, hashVal));
+                return c1.allKeys(visitor, null);
             }
+        } else {
+            if(c2 != null) {
+                return c2.allKeys(visitor, null);
+            } else {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Provides all the leaves on the marshaled JMerkle structure as per
+     * <code>JMerkle.allkeys(t1)</code>, reading the buffer (from its
+     * position to its limit) in place.
+     */
+    public static List<String> allkeys(ByteBuffer t1) {
+        JMerkle.StringCollector allkeys = new JMerkle.StringCollector();
+        allkeys(t1, allkeys);
+        return allkeys.keys;
+    }
+
+    /**
+     * Passes the keys of all the leaves on the marshaled JMerkle structure
+     * to the provided visitor as per <code>allkeys(t1)</code> and
+     * <code>JMerkle.allkeys(t1, visitor)</code>.
+     * 
+     * @return <code>true</code> if every leaf was visited; <code>false</code>
+     *         if the visitor stopped the traversal.
+     */
+    public static boolean allkeys(ByteBuffer t1, JMerkleVisitor visitor) {
+        NodeCursor c1 = cursor(t1);
+        return c1 == null || c1.allKeys(visitor, null);
+    }
+
+    /**
+     * Reads the header of the marshaled structure starting at the buffer's
+     * position (without moving it).
+     * 
+     * @return a cursor on the structure's uppermost node, or
+     *         <code>null</code> if the buffer has no remaining bytes.
+     */
+    /*default*/ static NodeCursor cursor(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return null;
         }
+        // absolute gets on a view that reads the multi-byte values as they were written:
+        ByteBuffer source = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int position = source.position();
+
+        if (source.get(position) != MAGIC_0) {
+            return new V1NodeCursor(source, position, JMerkleHashFunction.SHA1, detectScheme(source.duplicate()));
+        }
+
+        JMerkleHashFunction hashFunction = readHashFunction(source, position);
+        JMerkleHashScheme scheme = readScheme(source, position);
+        int width = hashFunction.width();
+
+        if (source.get(position + 2) == JMerkleFormat.V2.version) {
+            byte flags = source.get(position + HEADER_SIZE);
+            if ((flags & ~(JMerkleFormat.SHARED_PREFIXES | JMerkleFormat.COMPRESSED_PATHS)) != 0)
+                throw new IllegalStateException("Marshaled JMerkle binary has unsupported format version 2 flags " + flags + ".");
+            if (source.remaining() < V2_HEADER_SIZE + 1 + width)
+                throw new IllegalStateException("Marshaled JMerkle binary does not contain a " + width + " byte hash and is therefore corrupt.");
+            return new V2NodeCursor(source, position + V2_HEADER_SIZE, (flags & JMerkleFormat.SHARED_PREFIXES) != 0,
+                    (flags & JMerkleFormat.COMPRESSED_PATHS) != 0, hashFunction, scheme);
+        }
+
+        if (source.remaining() < HEADER_SIZE + 1 + width)
+            throw new IllegalStateException("Marshaled JMerkle binary does not contain a " + width + " byte hash and is therefore corrupt.");
+        return new V1NodeCursor(source, position + HEADER_SIZE, hashFunction, scheme);
+    }
+
+    /**
+     * Validates the header at the provided position of the (big-endian)
+     * buffer.
+     * 
+     * @return the <code>JMerkleHashFunction</code> the header identifies.
+     */
+    /*default*/ static JMerkleHashFunction readHashFunction(ByteBuffer source, int position) {
+        if (source.limit() - position < HEADER_SIZE || source.get(position) != MAGIC_0 || source.get(position + 1) != MAGIC_1)
+            throw new IllegalStateException("Marshaled JMerkle binary has an unrecognized header and is therefore corrupt.");
+        byte formatVersion = source.get(position + 2);
+        if (formatVersion != JMerkleFormat.V1.version && formatVersion != JMerkleFormat.V2.version)
+            throw new IllegalStateException("Marshaled JMerkle binary has unsupported format version " + formatVersion + ".");
+        int hashFunctionId = source.get(position + 3) & 0xFF;
+        JMerkleHashFunction hashFunction = JMerkleHashFunction.forId(hashFunctionId);
+        if (hashFunction == null)
+            throw new IllegalStateException("Marshaled JMerkle binary uses unregistered JMerkleHashFunction " + hashFunctionId + ".");
+        int width = source.get(position + 4) & 0xFF;
+        if (width != hashFunction.width())
+            throw new IllegalStateException("Marshaled JMerkle binary declares a " + width + " byte hash, but JMerkleHashFunction "
+                    + hashFunctionId + " is " + hashFunction.width() + " bytes; it is therefore corrupt.");
+        return hashFunction;
+    }
 
-        return parent;
+    /**
+     * @return the <code>JMerkleHashScheme</code> the header at the provided
+     *         position of the buffer identifies.
+     */
+    /*default*/ static JMerkleHashScheme readScheme(ByteBuffer source, int position) {
+        return JMerkleHashScheme.forVersion(source.get(position + 5));
     }
 
-    private static JMerkle unmarshalLeaf(DataInput in, byte[] hashVal) throws Exception {
-        int userKeySize = in.readInt();
-        byte[] userKeyBytes = new byte[userKeySize];
-        in.readFully(userKeyBytes);
-        return new Leaf(userKeyBytes, hashVal);
+    /**
+     * Recomputes the (headerless) uppermost branch's
+     * <code>JMerkleHashScheme.CHILD_DIGEST</code> hash from its children's
+     * keys, types, hashVals and (leaf) userKeys, skipping over each child's
+     * subtree via its offset, and compares it to the marshaled hashVal. A
+     * mismatch means the tree was hashed with the original serialized scheme.
+     */
+    private static JMerkleHashScheme detectScheme(ByteBuffer buffer) {
+        if (buffer.remaining() < 27 || buffer.get() == 0) {
+            // a leaf's hashVal is the same under every scheme:
+            return JMerkleHashScheme.CHILD_DIGEST;
+        }
+        byte[] hashVal = new byte[20];
+        buffer.get(hashVal);
+        // skip the offset:
+        buffer.getInt();
+        short numberOfChildren = buffer.getShort();
+
+        MessageDigest digest = JMerkleHashFunction.SHA1.digest();
+        digest.update(JMerkleHashScheme.CHILD_DIGEST.version);
+        for (short i = 0; i < numberOfChildren; i++) {
+            digest.update(buffer.get());
+            // the child's type and hashVal (and a leaf's userKey size and
+            // userKey) are digested just as they're marshaled:
+            ByteBuffer child = buffer.slice();
+            boolean childIsBranch = child.get(0) != 0;
+            // a branch's offset is inclusive of its type and hashVal:
+            int size = child.getInt(21);
+            child.limit(childIsBranch ? 21 : 25 + size);
+            digest.update(child);
+            buffer.position(buffer.position() + (childIsBranch ? size : 25 + size));
+        }
+
+        return Arrays.equals(hashVal, digest.digest()) ? JMerkleHashScheme.CHILD_DIGEST : JMerkleHashScheme.SERIALIZED;
+    }
+
+    /**
+     * Builds the node the provided cursor is on (and all of its descendants).
+     */
+    private static JMerkle unmarshal(NodeCursor node) {
+        byte[] hashVal = node.hashVal();
+
+        if (!node.isBranch()) {
+            return new Leaf(node.userKey(), hashVal, node.hashFunction, node.scheme);
+        }
+
+        Branch branch = new Branch(node.hashFunction, node.scheme);
+        branch.hashVal = hashVal;
+        branch.offset = node.offset();
+
+        int[] indexes = new int[256];
+        JMerkle[] children = new JMerkle[256];
+        int childCount = 0;
+        NodeCursor child = node.children();
+        do {
+            indexes[childCount] = child.index();
+            children[childCount++] = unmarshal(child);
+        } while (child.next());
+        branch.setChildren(Arrays.copyOf(indexes, childCount), Arrays.copyOf(children, childCount));
+
+        return branch;
+    }
+
+    /**
+     * @return the number of bytes <code>marshal(jMerkle)</code> produces
+     *         (header included); 0 for a null JMerkle.
+     */
+    public static int marshaledSize(JMerkle jMerkle) {
+        return marshaledSize(jMerkle, JMerkleFormat.V1);
+    }
+
+    /**
+     * @return the number of bytes <code>marshal(jMerkle, format)</code>
+     *         produces (header included); 0 for a null JMerkle. Known up
+     *         front for <code>JMerkleFormat.V1</code>; measured otherwise.
+     */
+    public static int marshaledSize(JMerkle jMerkle, JMerkleFormat format) {
+        return marshaledSize(jMerkle, layout(jMerkle, format));
     }
 
     public static byte[] marshal(JMerkle jMerkle) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
+        return marshal(jMerkle, JMerkleFormat.V1);
+    }
 
-        if (jMerkle != null) {
-            // first bit toggles the type:
-            boolean isBranch = jMerkle.isBranch();
-            dos.writeBoolean(isBranch);
+    /**
+     * Marshals the provided JMerkle in the provided format.
+     */
+    public static byte[] marshal(JMerkle jMerkle, JMerkleFormat format) {
+        V2Layout layout = layout(jMerkle, format);
+        // the exact size is known up front; fill the array in place:
+        byte[] treeBytes = new byte[marshaledSize(jMerkle, layout)];
+        marshal(jMerkle, format, layout, ByteBuffer.wrap(treeBytes));
+        return treeBytes;
+    }
+
+    /**
+     * Marshals the provided JMerkle into the provided buffer, starting at
+     * its position and advancing it by <code>marshaledSize(jMerkle)</code>
+     * bytes. Nothing is written if the buffer lacks the room for it.
+     * 
+     * @throws BufferOverflowException if fewer than
+     *         <code>marshaledSize(jMerkle)</code> bytes remain in the buffer.
+     */
+    public static void marshal(JMerkle jMerkle, ByteBuffer buffer) {
+        marshal(jMerkle, JMerkleFormat.V1, buffer);
+    }
 
-            // next byte[20] is its hashVal
-            dos.write(jMerkle.hashVal);
+    /**
+     * Marshals the provided JMerkle in the provided format into the
+     * provided buffer as per <code>marshal(jMerkle, buffer)</code>.
+     * 
+     * @throws BufferOverflowException if fewer than
+     *         <code>marshaledSize(jMerkle, format)</code> bytes remain in
+     *         the buffer.
+     */
+    public static void marshal(JMerkle jMerkle, JMerkleFormat format, ByteBuffer buffer) {
+        marshal(jMerkle, format, layout(jMerkle, format), buffer);
+    }
+
+    /**
+     * Marshals the provided JMerkle to the provided channel, streaming it
+     * through a small, per-thread direct buffer rather than materializing
+     * it. The channel is not closed.
+     */
+    public static void marshal(JMerkle jMerkle, WritableByteChannel channel) throws IOException {
+        marshal(jMerkle, JMerkleFormat.V1, channel);
+    }
+
+    /**
+     * Marshals the provided JMerkle in the provided format to the provided
+     * channel as per <code>marshal(jMerkle, channel)</code>.
+     */
+    public static void marshal(JMerkle jMerkle, JMerkleFormat format, WritableByteChannel channel) throws IOException {
+        MarshalOutput out = new MarshalOutput(channel);
+        marshal(jMerkle, format, layout(jMerkle, format), out);
+        out.flush();
+    }
+
+    /**
+     * Marshals the provided JMerkle to the provided stream as per
+     * <code>marshal(jMerkle, channel)</code>. The stream is neither
+     * flushed nor closed.
+     */
+    public static void marshal(JMerkle jMerkle, OutputStream out) throws IOException {
+        marshal(jMerkle, JMerkleFormat.V1, out);
+    }
+
+    /**
+     * Marshals the provided JMerkle in the provided format to the provided
+     * stream as per <code>marshal(jMerkle, out)</code>.
+     */
+    public static void marshal(JMerkle jMerkle, JMerkleFormat format, OutputStream out) throws IOException {
+        marshal(jMerkle, format, Channels.newChannel(out));
+    }
+
+    /**
+     * Marshals what it takes to turn the provided base (e.g. the JMerkle a
+     * peer last received) into the provided JMerkle: only the nodes on the
+     * paths that changed are written, along with which of their children
+     * are unchanged and can be reused from the base, so the delta's size
+     * follows the number of changes (times the depth) rather than the size
+     * of the tree. Either JMerkle may be null.
+     * 
+     * @throws IllegalArgumentException if the JMerkles are hashed with
+     *         different <code>JMerkleHashFunction</code>s or
+     *         <code>JMerkleHashScheme</code>s.
+     */
+    public static byte[] marshalDelta(JMerkle base, JMerkle jMerkle) {
+        return JMerkleDelta.marshal(base, jMerkle);
+    }
 
-            // marshal respective of the type:
-            if (isBranch) {
-                marshalChildren(dos, (Branch) jMerkle);
+    /**
+     * Applies a delta from <code>marshalDelta(base, jMerkle)</code> to the
+     * provided base, producing the JMerkle it was marshaled from, whose
+     * hashVal is verified. The result shares its unchanged subtrees with
+     * the base, which is therefore, as with <code>JMerkle.alter</code>, not
+     * to be altered independently afterwards.
+     * 
+     * @throws IllegalArgumentException if the delta wasn't marshaled against
+     *         the provided base, or is truncated or otherwise corrupt.
+     */
+    public static JMerkle applyDelta(JMerkle base, byte[] delta) {
+        return JMerkleDelta.apply(base, delta);
+    }
+
+    /**
+     * @return the provided JMerkle's format version 2 layout, or null if
+     *         it's marshaled in version 1 (or is null).
+     */
+    private static V2Layout layout(JMerkle jMerkle, JMerkleFormat format) {
+        if (jMerkle == null || format == JMerkleFormat.V1) {
+            return null;
+        }
+        V2Layout layout = new V2Layout(format, jMerkle);
+        layout.measure(jMerkle);
+        return layout;
+    }
+
+    private static int marshaledSize(JMerkle jMerkle, V2Layout layout) {
+        if (jMerkle == null) {
+            return 0;
+        }
+        return layout == null ? HEADER_SIZE + jMerkle.offset() : V2_HEADER_SIZE + layout.size();
+    }
+
+    private static void marshal(JMerkle jMerkle, JMerkleFormat format, V2Layout layout, ByteBuffer buffer) {
+        int size = marshaledSize(jMerkle, layout);
+        if (buffer.remaining() < size)
+            throw new BufferOverflowException();
+        int position = buffer.position();
+        // write big-endian regardless of the buffer's byte order:
+        ByteBuffer target = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            marshal(jMerkle, format, layout, new MarshalOutput(target, null));
+        } catch (IOException e) {
+            // only a channel can throw; there is none:
+            throw new IllegalStateException(e);
+        }
+        if (target.position() != position + size)
+            throw new IllegalStateException("JMerkle marshaled to " + (target.position() - position) + " bytes rather than its "
+                    + size + " byte size.");
+        buffer.position(position + size);
+    }
+
+    private static void marshal(JMerkle jMerkle, JMerkleFormat format, V2Layout layout, MarshalOutput out) throws IOException {
+        if (jMerkle != null) {
+            JMerkle.hashed(jMerkle);
+            marshalHeader(format, jMerkle.hashFunction, jMerkle.scheme, out);
+            if (layout == null) {
+                marshalNode(jMerkle, out);
             } else {
-                marshalLeaf(dos, (Leaf) jMerkle);
+                layout.write(jMerkle, out);
             }
-            dos.flush();
         }
+    }
+
+    /*default*/ static void marshalHeader(JMerkleFormat format, JMerkleHashFunction hashFunction, JMerkleHashScheme scheme,
+            MarshalOutput out) throws IOException {
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(format.version);
+        out.put((byte) hashFunction.id());
+        out.put((byte) hashFunction.width());
+        out.put(scheme.version);
+        if (format.version != JMerkleFormat.V1.version) {
+            out.put(format.flags);
+        }
+    }
 
-        return baos.toByteArray();
+    /*default*/ static void marshalNode(JMerkle jMerkle, MarshalOutput out) throws IOException {
+        // first byte toggles the type:
+        boolean isBranch = jMerkle.isBranch();
+        out.put((byte) (isBranch ? 1 : 0));
+
+        // next byte[width] is its hashVal
+        out.put(jMerkle.hashVal);
+
+        // marshal respective of the type:
+        if (isBranch) {
+            marshalChildren(out, (Branch) jMerkle);
+        } else {
+            marshalLeaf(out, (Leaf) jMerkle);
+        }
     }
 
-    private static void marshalLeaf(DataOutput out, Leaf leaf) throws Exception {
+    /*default*/ static void marshalLeaf(MarshalOutput out, Leaf leaf) throws IOException {
         byte[] userKeyBytes = leaf.userKey;
-        out.writeInt(userKeyBytes.length);
-        out.write(userKeyBytes);
+        out.putInt(userKeyBytes.length);
+        out.put(userKeyBytes);
     }
 
-    private static void marshalChildren(DataOutput out, Branch branch) throws Exception {
+    private static void marshalChildren(MarshalOutput out, Branch branch) throws IOException {
         // next int is the branch's offset
-        out.writeInt(branch.offset());
+        out.putInt(branch.offset());
 
-        TreeMap<Byte, JMerkle> branchChildren = branch.children;
         // next short is the number of children in this branch
-        out.writeShort(branchChildren.size());
-        for(Entry<Byte, JMerkle> entry : branchChildren.entrySet()) {
-            Byte key = entry.getKey();
-            JMerkle child = entry.getValue();
+        out.putShort((short) branch.size());
+        JMerkle[] children = branch.childNodes();
+        int position = 0;
+        for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+            JMerkle child = children[position++];
             // next byte is its key:
-            out.writeByte(key);
-            //JMerkle child = branchChildren.get(key);
+            out.put(Branch.key(index));
             boolean childIsBranch = child.isBranch();
-            // next boolean is the child's type:
-            out.writeBoolean(childIsBranch);
-            // next byte[20] is the child's hashVal:
-            out.write(child.hashVal);
+            // next byte is the child's type:
+            out.put((byte) (childIsBranch ? 1 : 0));
+            // next byte[width] is the child's hashVal:
+            out.put(child.hashVal);
             // toggle branch/leaf differences:
             if (childIsBranch) {
                 marshalChildren(out, (Branch) child);
@@ -145,4 +528,335 @@ public class JMerkleMarshaler {
             }
         }
     }
+
+    /**
+     * Marshals a JMerkle in format version 2 (see <code>V2NodeCursor</code>).
+     * A branch's tag holds its size, which is only known once its subtree
+     * has been measured; the sizes (and shared prefixes) of the branches are
+     * therefore measured up front, in the order they're then written.
+     */
+    private static final class V2Layout {
+
+        private final boolean sharedPrefixes;
+
+        private final boolean compressedPaths;
+
+        // whether a path's hashVals below its first branch are written (see V2NodeCursor):
+        private final boolean pathHashVals;
+
+        private final int width;
+
+        // per branch, in marshaled order:
+        private int[] sizes = new int[16];
+
+        private int[] prefixSizes = new int[16];
+
+        private int branches;
+
+        // the uppermost node's size (tag included):
+        private int size;
+
+        // the next branch to be written:
+        private int next;
+
+        V2Layout(JMerkleFormat format, JMerkle jMerkle) {
+            this.sharedPrefixes = (format.flags & JMerkleFormat.SHARED_PREFIXES) != 0;
+            this.compressedPaths = (format.flags & JMerkleFormat.COMPRESSED_PATHS) != 0;
+            this.pathHashVals = jMerkle.scheme == JMerkleHashScheme.SERIALIZED;
+            this.width = jMerkle.hashFunction.width();
+        }
+
+        int size() {
+            return size;
+        }
+
+        void measure(JMerkle jMerkle) {
+            long size = measure(jMerkle, 0);
+            if (size > Integer.MAX_VALUE - V2_HEADER_SIZE)
+                throw new IllegalStateException("JMerkle is too large to be marshaled in format version 2.");
+            this.size = (int) size;
+        }
+
+        /**
+         * @return the node's size as marshaled, tag included.
+         */
+        private long measure(JMerkle node, int prefixSize) {
+            if (!node.isBranch()) {
+                int suffixSize = ((Leaf) node).userKey.length - prefixSize;
+                return V2NodeCursor.varintSize(suffixSize << 1) + width + suffixSize;
+            }
+
+            Branch branch = (Branch) node;
+            int slot = branches++;
+            if (slot == sizes.length) {
+                sizes = Arrays.copyOf(sizes, slot * 2);
+                prefixSizes = Arrays.copyOf(prefixSizes, slot * 2);
+            }
+            JMerkle[] children = branch.childNodes();
+            if (compressedPaths && children.length == 1) {
+                // (a single child is a branch; a single leaf would have replaced its parent)
+                int pathLength = pathLength(branch);
+                long size = width + V2NodeCursor.varintSize(pathLength - 1) + 1 + pathLength
+                        + (pathHashVals ? (pathLength - 1) * width : 0) + measure(pathEnd(branch), 0);
+                return tagged(slot, size, 0);
+            }
+            int childPrefixSize = sharedPrefixes ? sharedPrefixSize(children) : 0;
+
+            long size = width + V2NodeCursor.varintSize(branch.offset()) + 1
+                    + (children.length >= V2NodeCursor.BITMAP_THRESHOLD ? 32 : children.length);
+            if (sharedPrefixes) {
+                size += V2NodeCursor.varintSize(childPrefixSize) + childPrefixSize;
+            }
+            for (JMerkle child : children) {
+                size += measure(child, childPrefixSize);
+            }
+            return tagged(slot, size, childPrefixSize);
+        }
+
+        /**
+         * Records the size of the branch in the provided slot.
+         * 
+         * @return its size, tag included.
+         */
+        private long tagged(int slot, long size, int childPrefixSize) {
+            // the size is tagged (shifted) as an int:
+            if (size > Integer.MAX_VALUE >>> 1)
+                throw new IllegalStateException("JMerkle is too large to be marshaled in format version 2.");
+            sizes[slot] = (int) size;
+            prefixSizes[slot] = childPrefixSize;
+            return V2NodeCursor.varintSize((int) size << 1 | 1) + size;
+        }
+
+        /**
+         * @return the number of branches, from the provided one down, that
+         *         hold a single (branch) child.
+         */
+        private static int pathLength(Branch branch) {
+            int pathLength = 0;
+            JMerkle node = branch;
+            while (node.isBranch() && ((Branch) node).size() == 1) {
+                pathLength++;
+                node = ((Branch) node).childNodes()[0];
+            }
+            return pathLength;
+        }
+
+        /**
+         * @return the branch the path of single child branches from the
+         *         provided one leads to.
+         */
+        private static JMerkle pathEnd(Branch branch) {
+            JMerkle node = branch;
+            while (node.isBranch() && ((Branch) node).size() == 1) {
+                node = ((Branch) node).childNodes()[0];
+            }
+            return node;
+        }
+
+        /**
+         * @return the size of the common prefix of the userKeys of the leaves
+         *         among the provided children.
+         */
+        private static int sharedPrefixSize(JMerkle[] children) {
+            byte[] prefix = null;
+            int prefixSize = 0;
+            for (JMerkle child : children) {
+                if (child.isBranch()) {
+                    continue;
+                }
+                byte[] userKey = ((Leaf) child).userKey;
+                if (prefix == null) {
+                    prefix = userKey;
+                    prefixSize = userKey.length;
+                } else {
+                    int i = 0;
+                    int limit = Math.min(prefixSize, userKey.length);
+                    while (i < limit && prefix[i] == userKey[i]) {
+                        i++;
+                    }
+                    prefixSize = i;
+                }
+            }
+            return prefixSize;
+        }
+
+        void write(JMerkle jMerkle, MarshalOutput out) throws IOException {
+            write(jMerkle, null, 0, out);
+        }
+
+        private void write(JMerkle node, byte[] prefix, int prefixSize, MarshalOutput out) throws IOException {
+            if (!node.isBranch()) {
+                byte[] userKey = ((Leaf) node).userKey;
+                int suffixSize = userKey.length - prefixSize;
+                out.putVarint(suffixSize << 1);
+                out.put(node.hashVal);
+                out.put(userKey, prefixSize, suffixSize);
+                return;
+            }
+
+            Branch branch = (Branch) node;
+            int slot = next++;
+            JMerkle[] children = branch.childNodes();
+            out.putVarint(sizes[slot] << 1 | 1);
+            out.put(branch.hashVal);
+            if (compressedPaths && children.length == 1) {
+                writePath(branch, out);
+                return;
+            }
+            out.putVarint(branch.offset());
+            out.put((byte) (children.length - 1));
+            if (children.length >= V2NodeCursor.BITMAP_THRESHOLD) {
+                byte[] bitmap = new byte[32];
+                for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+                    bitmap[index >> 3] |= 1 << (index & 7);
+                }
+                out.put(bitmap);
+            } else {
+                for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+                    out.put((byte) index);
+                }
+            }
+
+            int childPrefixSize = prefixSizes[slot];
+            byte[] childPrefix = null;
+            if (sharedPrefixes) {
+                out.putVarint(childPrefixSize);
+                if (childPrefixSize > 0) {
+                    // any of the leaves holds the prefix:
+                    for (JMerkle child : children) {
+                        if (!child.isBranch()) {
+                            childPrefix = ((Leaf) child).userKey;
+                            break;
+                        }
+                    }
+                    out.put(childPrefix, 0, childPrefixSize);
+                }
+            }
+            for (JMerkle child : children) {
+                write(child, childPrefix, childPrefixSize, out);
+            }
+        }
+
+        /**
+         * Writes the rest of the path of single child branches from the
+         * provided one (whose tag and hashVal are written), then the branch
+         * it leads to.
+         */
+        private void writePath(Branch branch, MarshalOutput out) throws IOException {
+            int pathLength = pathLength(branch);
+            // the path's length stands in for its offset, which follows from the end's:
+            out.putVarint(pathLength - 1);
+            out.put((byte) 0);
+            JMerkle node = branch;
+            for (int i = 0; i < pathLength; i++) {
+                out.put((byte) ((Branch) node).nextIndex(0));
+                node = ((Branch) node).childNodes()[0];
+            }
+            if (pathHashVals) {
+                node = branch;
+                for (int i = 1; i < pathLength; i++) {
+                    node = ((Branch) node).childNodes()[0];
+                    out.put(node.hashVal);
+                }
+            }
+            write(pathEnd(branch), null, 0, out);
+        }
+    }
+
+    /**
+     * Writes marshaled bytes to a buffer which, given a channel, is drained
+     * to the channel whenever it fills up.
+     */
+    /*default*/ static final class MarshalOutput {
+
+        private final ByteBuffer buffer;
+
+        private final WritableByteChannel channel;
+
+        // bytes put so far:
+        private long count;
+
+        MarshalOutput(ByteBuffer buffer, WritableByteChannel channel) {
+            this.buffer = buffer;
+            this.channel = channel;
+        }
+
+        /**
+         * Streams to the provided channel through a per-thread direct buffer.
+         */
+        MarshalOutput(WritableByteChannel channel) {
+            this(STREAM_BUFFERS.get(), channel);
+            buffer.clear();
+        }
+
+        long count() {
+            return count;
+        }
+
+        void put(byte b) throws IOException {
+            require(1);
+            buffer.put(b);
+            count++;
+        }
+
+        void putShort(short s) throws IOException {
+            require(2);
+            buffer.putShort(s);
+            count += 2;
+        }
+
+        void putInt(int i) throws IOException {
+            require(4);
+            buffer.putInt(i);
+            count += 4;
+        }
+
+        void putLong(long l) throws IOException {
+            require(8);
+            buffer.putLong(l);
+            count += 8;
+        }
+
+        void putVarint(int i) throws IOException {
+            while ((i & ~0x7F) != 0) {
+                put((byte) (i & 0x7F | 0x80));
+                i >>>= 7;
+            }
+            put((byte) i);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            put(bytes, 0, bytes.length);
+        }
+
+        void put(byte[] bytes, int offset, int length) throws IOException {
+            if (channel == null) {
+                buffer.put(bytes, offset, length);
+            } else {
+                // bytes may well exceed the buffer; write them a bufferful at a time:
+                int end = offset + length;
+                while (offset < end) {
+                    require(1);
+                    int chunk = Math.min(buffer.remaining(), end - offset);
+                    buffer.put(bytes, offset, chunk);
+                    offset += chunk;
+                }
+            }
+            count += length;
+        }
+
+        private void require(int bytes) throws IOException {
+            if (channel != null && buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
 }
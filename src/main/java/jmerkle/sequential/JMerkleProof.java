@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import jmerkle.sequential.JMerkleMarshaler.MarshalOutput;
+
+/**
+ * Produces and checks inclusion proofs (see <code>JMerkle.prove</code>).
+ * As a <code>JMerkleHashScheme.CHILD_DIGEST</code> branch's hashVal is the
+ * digest of all of its children, a proof holds, for each branch on the
+ * key's path, the children other than the one on the path, from which the
+ * branch's hashVal is recomputed up to the root's. A proof is laid out as
+ * <pre>
+ * magic ('J', 'P') (2) | proof version (1) | hash function id (1) | hash width (1) | hash scheme (1) | depth (1) | branch...
+ * </pre>
+ * with a branch (from the uppermost down) being
+ * <pre>
+ * number of children - 1 (1) | position of the child on the path (1) | (key (1) | type (1) | hashVal (width) | [userKey size (4) | userKey])...
+ * </pre>
+ * where each child is laid out as its parent's hashVal digests it (a leaf
+ * bearing its userKey), in key order, the child on the path being left
+ * out: its key is the key digest's byte at the branch's depth.
+ */
+/*default*/ final class JMerkleProof {
+
+    /*default*/ static final byte MAGIC_0 = 'J';
+
+    /*default*/ static final byte MAGIC_1 = 'P';
+
+    /*default*/ static final byte PROOF_VERSION = 1;
+
+    private JMerkleProof() {
+    }
+
+    /*default*/ static byte[] prove(JMerkle t1, byte[] key) {
+        if (t1 == null) {
+            return null;
+        }
+        if (t1.scheme != JMerkleHashScheme.CHILD_DIGEST)
+            throw new IllegalArgumentException("Only JMerkleHashScheme.CHILD_DIGEST JMerkles can be proven; rehash it first.");
+        if (!t1.isBranch())
+            throw new IllegalArgumentException("A JMerkle of a single leaf can't be proven: its root hash is its value's alone.");
+
+        JMerkle.hashed(t1);
+        byte[] keyDigest = JMerkle.keyDigest(t1.hashFunction, key);
+        Branch[] path = new Branch[keyDigest.length];
+        int depth = 0;
+        JMerkle node = t1;
+        while (node.isBranch()) {
+            path[depth] = (Branch) node;
+            node = path[depth].child(Branch.index(keyDigest[depth]));
+            if (node == null) {
+                return null;
+            }
+            depth++;
+        }
+        if (!Arrays.equals(((Leaf) node).userKey, key)) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            MarshalOutput out = new MarshalOutput(Channels.newChannel(bytes));
+            out.put(MAGIC_0);
+            out.put(MAGIC_1);
+            out.put(PROOF_VERSION);
+            out.put((byte) t1.hashFunction.id());
+            out.put((byte) t1.hashFunction.width());
+            out.put(t1.scheme.version);
+            out.put((byte) depth);
+            for (int level = 0; level < depth; level++) {
+                Branch branch = path[level];
+                int pathIndex = Branch.index(keyDigest[level]);
+                JMerkle[] children = branch.childNodes();
+                out.put((byte) (children.length - 1));
+                out.put((byte) branch.position(pathIndex));
+                int position = 0;
+                for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+                    JMerkle child = children[position++];
+                    if (index == pathIndex) {
+                        continue;
+                    }
+                    out.put(Branch.key(index));
+                    boolean childIsBranch = child.isBranch();
+                    out.put((byte) (childIsBranch ? 1 : 0));
+                    out.put(child.hashVal);
+                    if (!childIsBranch) {
+                        JMerkleMarshaler.marshalLeaf(out, (Leaf) child);
+                    }
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw:
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*default*/ static boolean verify(byte[] rootHash, byte[] key, byte[] valueDigest, byte[] proof) {
+        ByteBuffer in = ByteBuffer.wrap(proof);
+        try {
+            if (in.get() != MAGIC_0 || in.get() != MAGIC_1 || in.get() != PROOF_VERSION) {
+                return false;
+            }
+            JMerkleHashFunction hashFunction = JMerkleHashFunction.forId(in.get() & 0xFF);
+            int width = in.get() & 0xFF;
+            if (hashFunction == null || width != hashFunction.width() || in.get() != JMerkleHashScheme.CHILD_DIGEST.version
+                    || valueDigest.length != width) {
+                return false;
+            }
+            int depth = in.get() & 0xFF;
+            byte[] keyDigest = JMerkle.keyDigest(hashFunction, key);
+            // without a branch to recompute, nothing would bind the key:
+            if (depth == 0 || depth > keyDigest.length) {
+                return false;
+            }
+
+            // note where each branch's children start, so as to digest from the leaf up:
+            int[] starts = new int[depth];
+            for (int level = 0; level < depth; level++) {
+                starts[level] = in.position();
+                int numberOfChildren = (in.get() & 0xFF) + 1;
+                in.get();
+                for (int i = 1; i < numberOfChildren; i++) {
+                    in.get();
+                    byte type = in.get();
+                    if (type != 0 && type != 1) {
+                        return false;
+                    }
+                    boolean isBranch = type == 1;
+                    in.position(in.position() + width);
+                    if (!isBranch) {
+                        int size = in.getInt();
+                        in.position(in.position() + size);
+                    }
+                }
+            }
+            if (in.hasRemaining()) {
+                return false;
+            }
+
+            byte[] hashVal = valueDigest;
+            boolean isBranch = false;
+            for (int level = depth - 1; level >= 0; level--) {
+                in.position(starts[level]);
+                int numberOfChildren = (in.get() & 0xFF) + 1;
+                int pathPosition = in.get() & 0xFF;
+                if (pathPosition >= numberOfChildren) {
+                    return false;
+                }
+                int pathIndex = Branch.index(keyDigest[level]);
+                MessageDigest digest = hashFunction.digest();
+                digest.update(JMerkleHashScheme.CHILD_DIGEST.version);
+                int previousIndex = -1;
+                for (int position = 0; position < numberOfChildren; position++) {
+                    int index;
+                    if (position == pathPosition) {
+                        index = pathIndex;
+                        Branch.digestChild(digest, keyDigest[level], isBranch, hashVal, key);
+                    } else {
+                        byte childKey = in.get();
+                        index = Branch.index(childKey);
+                        boolean childIsBranch = in.get() == 1;
+                        byte[] childHashVal = new byte[width];
+                        in.get(childHashVal);
+                        byte[] userKey = null;
+                        if (!childIsBranch) {
+                            userKey = new byte[in.getInt()];
+                            in.get(userKey);
+                        }
+                        Branch.digestChild(digest, childKey, childIsBranch, childHashVal, userKey);
+                    }
+                    // the children must be in key order, placing the path's where it belongs:
+                    if (index <= previousIndex) {
+                        return false;
+                    }
+                    previousIndex = index;
+                }
+                hashVal = digest.digest();
+                isBranch = true;
+            }
+            return Arrays.equals(hashVal, rootHash);
+        } catch (BufferUnderflowException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            // a negative userKey size or the like:
+            return false;
+        } catch (IllegalStateException e) {
+            // an unrecognized scheme version:
+            return false;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import jmerkle.sequential.JMerkleMarshaler.MarshalOutput;
+
+/**
+ * Keeps a JMerkle in a file rather than on the heap. The file is memory
+ * mapped and <code>tree()</code> provides a JMerkle backed by the mapping
+ * (as per <code>JMerkleMarshaler.unmarshal(ByteBuffer)</code>), so
+ * <code>diff</code>, <code>allkeys</code> and <code>lookup</code> are served
+ * straight from the file. Alterations are copy-on-write: only the branches
+ * on the altered paths are written, appended to the file with references to
+ * the unchanged subtrees, after which the file's root is switched over. Once
+ * the file holds more than <code>COMPACTION_RATIO</code> times the bytes of
+ * its current tree, it is compacted (rewritten with its current tree only).
+ * <p/>
+ * A store file is laid out as
+ * <pre>
+ * magic ('J', 'S') (2) | store version (1) | reserved (1) | root position (8) | marshaled JMerkle
+ * </pre>
+ * where the marshaled JMerkle is as produced by <code>JMerkleMarshaler</code>
+ * (header included), followed by the appended nodes. The root position is
+ * that of the current root's type byte, or 0 if the tree is empty. Mappings
+ * are limited to 2GB.
+ * <p/>
+ * A store has a single writer: its methods are synchronized.
+ */
+public class JMerkleStore implements Closeable {
+
+    /*default*/ static final byte MAGIC_0 = 'J';
+
+    /*default*/ static final byte MAGIC_1 = 'S';
+
+    /*default*/ static final byte STORE_VERSION = 1;
+
+    /*default*/ static final int STORE_HEADER_SIZE = 12;
+
+    /*default*/ static final int ROOT_POSITION = 4;
+
+    /**
+     * The file is compacted once its size exceeds this multiple of the
+     * current tree's marshaled size.
+     */
+    public static final int COMPACTION_RATIO = 2;
+
+    private final Path path;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer mapping;
+
+    private JMerkleHashFunction hashFunction;
+
+    private JMerkleHashScheme scheme;
+
+    private long rootPosition;
+
+    private JMerkleStore(Path path) throws IOException {
+        this.path = path;
+        map(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Creates a store file at the provided path (which must not exist yet)
+     * holding the provided JMerkle, which may be null (in which case the
+     * store's trees will be hashed with <code>JMerkleHashFunction.SHA1</code>).
+     */
+    public static JMerkleStore create(Path path, JMerkle tree) throws IOException {
+        JMerkle.hashed(tree);
+        JMerkleHashFunction hashFunction = tree == null ? JMerkleHashFunction.SHA1 : tree.hashFunction;
+        JMerkleHashScheme scheme = tree == null ? JMerkleHashScheme.CHILD_DIGEST : tree.scheme;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            MarshalOutput out = writeHeaders(channel, tree == null ? 0 : STORE_HEADER_SIZE + JMerkleMarshaler.HEADER_SIZE,
+                    hashFunction, scheme);
+            if (tree != null) {
+                JMerkleMarshaler.marshalNode(tree, out);
+            }
+            out.flush();
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        return open(path);
+    }
+
+    /**
+     * Opens the store file at the provided path.
+     */
+    public static JMerkleStore open(Path path) throws IOException {
+        return new JMerkleStore(path);
+    }
+
+    /**
+     * @return the store's current JMerkle, backed by the file, or null if
+     *         it's empty. The JMerkle remains usable after subsequent
+     *         alterations of the store (it doesn't see them).
+     */
+    public synchronized JMerkle tree() {
+        if (rootPosition == 0) {
+            return null;
+        }
+        return JMerkleMarshaler.unmarshalLazily(new V1NodeCursor(mapping, (int) rootPosition, hashFunction, scheme));
+    }
+
+    /**
+     * Alters the store's JMerkle as per <code>JMerkle.alter(tree(), alterations)</code>,
+     * appending the altered branches to the file, and compacts the file if
+     * it has grown past <code>COMPACTION_RATIO</code>.
+     *
+     * @return the altered JMerkle, backed by the file, or null if it's empty.
+     */
+    public synchronized JMerkle alter(List<? extends JMerkleAlterable> alterations) throws IOException {
+        JMerkle altered = JMerkle.alter(tree(), alterations, hashFunction);
+        if (altered != null && altered.scheme != scheme) {
+            // a tree grown from empty; keep to the store's scheme:
+            JMerkle.rehash(altered, scheme);
+        }
+
+        long end = channel.size();
+        channel.position(end);
+        MarshalOutput out = new MarshalOutput(channel);
+        long alteredPosition = altered == null ? 0 : append(altered, mapping, end, out);
+        out.flush();
+        channel.force(false);
+
+        // now that the nodes are in place, switch the root over to them:
+        ByteBuffer root = ByteBuffer.allocate(8);
+        root.putLong(0, alteredPosition);
+        channel.write(root, ROOT_POSITION);
+        channel.force(false);
+        map(channel);
+
+        if (channel.size() > (long) COMPACTION_RATIO * (STORE_HEADER_SIZE + JMerkleMarshaler.marshaledSize(altered))) {
+            compact();
+        }
+        return tree();
+    }
+
+    /**
+     * Rewrites the file with only the current tree, dropping the nodes
+     * earlier alterations left behind. The nodes are copied from the current
+     * file without being unmarshaled. Should the rewritten file fail to
+     * replace the current one, the store carries on with the current one.
+     */
+    public synchronized void compact() throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path compacted = Files.createTempFile(directory, path.getFileName().toString(), ".compacting");
+        try {
+            FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                MarshalOutput out = writeHeaders(compactedChannel, rootPosition == 0 ? 0 : STORE_HEADER_SIZE
+                        + JMerkleMarshaler.HEADER_SIZE, hashFunction, scheme);
+                if (rootPosition != 0) {
+                    copy(new V1NodeCursor(mapping, (int) rootPosition, hashFunction, scheme), out);
+                }
+                out.flush();
+                compactedChannel.force(true);
+            } finally {
+                compactedChannel.close();
+            }
+            channel.close();
+            try {
+                Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // (including an unsupported atomic move) the file is as it
+                // was; keep serving it rather than the closed channel:
+                map(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                throw e;
+            }
+        } finally {
+            Files.deleteIfExists(compacted);
+        }
+        map(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * @return the size of the store's file in bytes.
+     */
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void map(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        if (size < STORE_HEADER_SIZE + JMerkleMarshaler.HEADER_SIZE)
+            throw new IllegalStateException("JMerkleStore file " + path + " is too short and is therefore corrupt.");
+        MappedByteBuffer mapping = channel.map(MapMode.READ_ONLY, 0, size);
+        if (mapping.get(0) != MAGIC_0 || mapping.get(1) != MAGIC_1)
+            throw new IllegalStateException("JMerkleStore file " + path + " has an unrecognized header and is therefore corrupt.");
+        if (mapping.get(2) != STORE_VERSION)
+            throw new IllegalStateException("JMerkleStore file " + path + " has unsupported store version " + mapping.get(2) + ".");
+        long rootPosition = mapping.getLong(ROOT_POSITION);
+        if (rootPosition != 0 && (rootPosition < STORE_HEADER_SIZE + JMerkleMarshaler.HEADER_SIZE || rootPosition >= size))
+            throw new IllegalStateException("JMerkleStore file " + path + " has its root at " + rootPosition
+                    + " and is therefore corrupt.");
+        if (mapping.get(STORE_HEADER_SIZE + 2) != JMerkleFormat.V1.version)
+            throw new IllegalStateException("JMerkleStore file " + path + " holds a JMerkle of unsupported format version "
+                    + mapping.get(STORE_HEADER_SIZE + 2) + ".");
+        this.hashFunction = JMerkleMarshaler.readHashFunction(mapping, STORE_HEADER_SIZE);
+        this.scheme = JMerkleMarshaler.readScheme(mapping, STORE_HEADER_SIZE);
+        this.mapping = mapping;
+        this.rootPosition = rootPosition;
+    }
+
+    /*default*/ static MarshalOutput writeHeaders(FileChannel channel, long rootPosition, JMerkleHashFunction hashFunction,
+            JMerkleHashScheme scheme) throws IOException {
+        MarshalOutput out = new MarshalOutput(channel);
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(STORE_VERSION);
+        out.put((byte) 0);
+        out.putLong(rootPosition);
+        JMerkleMarshaler.marshalHeader(JMerkleFormat.V1, hashFunction, scheme, out);
+        return out;
+    }
+
+    /**
+     * Appends the provided node (unless it's a branch already in the source)
+     * preceded by its child branches. Leaves are written within their
+     * parents; child branches are written as references.
+     *
+     * @param source the buffer the output is appended to (as of its end).
+     * @param end the source position the output starts at.
+     * @return the source position of the node's type byte.
+     */
+    /*default*/ static long append(JMerkle node, ByteBuffer source, long end, MarshalOutput out) throws IOException {
+        if (!node.isBranch()) {
+            long position = end + out.count();
+            JMerkleMarshaler.marshalNode(node, out);
+            return position;
+        }
+
+        Branch branch = (Branch) node;
+        NodeCursor origin = branch.origin();
+        if (origin instanceof V1NodeCursor && ((V1NodeCursor) origin).buffer() == source
+                && Arrays.equals(origin.hashVal(), branch.hashVal)) {
+            // unaltered since it was read from the source:
+            return ((V1NodeCursor) origin).position();
+        }
+
+        JMerkle[] children = branch.childNodes();
+        long[] childPositions = new long[children.length];
+        for (int i = 0; i < children.length; i++) {
+            if (children[i].isBranch()) {
+                childPositions[i] = append(children[i], source, end, out);
+            }
+        }
+
+        long position = end + out.count();
+        out.put((byte) 1);
+        out.put(branch.hashVal);
+        out.putInt(branch.offset());
+        out.putShort((short) children.length);
+        int i = 0;
+        for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+            JMerkle child = children[i];
+            out.put(Branch.key(index));
+            if (child.isBranch()) {
+                out.put(V1NodeCursor.REFERENCE);
+                out.put(child.hashVal);
+                out.putInt(child.offset());
+                out.putLong(childPositions[i]);
+            } else {
+                JMerkleMarshaler.marshalNode(child, out);
+            }
+            i++;
+        }
+        return position;
+    }
+
+    /**
+     * Writes the node the provided cursor is on (following any references)
+     * as <code>JMerkleMarshaler.marshalNode</code> would.
+     */
+    /*default*/ static void copy(NodeCursor node, MarshalOutput out) throws IOException {
+        boolean isBranch = node.isBranch();
+        out.put((byte) (isBranch ? 1 : 0));
+        out.put(node.hashVal());
+        if (!isBranch) {
+            byte[] userKey = node.userKey();
+            out.putInt(userKey.length);
+            out.put(userKey);
+            return;
+        }
+        out.putInt(node.offset());
+
+        short numberOfChildren = 0;
+        NodeCursor child = node.children();
+        do {
+            numberOfChildren++;
+        } while (child.next());
+        out.putShort(numberOfChildren);
+
+        child = node.children();
+        do {
+            out.put(Branch.key(child.index()));
+            copy(child, out);
+        } while (child.next());
+    }
+}
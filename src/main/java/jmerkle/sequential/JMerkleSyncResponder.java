@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import jmerkle.sequential.JMerkleMarshaler.MarshalOutput;
+
+/**
+ * Serves the requests of a remote <code>JMerkleSyncSession</code> against
+ * a JMerkle. A request asks for the nodes at a number of paths (a path
+ * being the keys from the uppermost branch down):
+ * <pre>
+ * sync version (1) | number of paths (varint) | (mode (1) | path size (1) | path)...
+ * </pre>
+ * which the response describes in turn:
+ * <pre>
+ * sync version (1) | hash function id (1) | hash scheme (1) | node...
+ * </pre>
+ * A node is described as
+ * <pre>
+ * type (0)
+ * type (1) | hashVal (width) | userKey size (varint) | userKey
+ * type (2) | number of children - 1 (1) | (key (1) | child type (1 or 3) | hashVal (width) | [userKey size (varint) | userKey])...
+ * type (3) | hashVal (width)
+ * </pre>
+ * for no node, a leaf, a branch's children (a leaf child bearing its userKey)
+ * and, if the path was requested in hash mode (0) rather than children mode
+ * (1), a branch's hashVal alone.
+ * <p/>
+ * The JMerkle must not be altered while sessions are underway; a responder
+ * may be handed a new one between sessions via <code>setTree</code>.
+ */
+public class JMerkleSyncResponder {
+
+    /*default*/ static final byte SYNC_VERSION = 1;
+
+    /*default*/ static final byte HASH_MODE = 0;
+
+    /*default*/ static final byte CHILDREN_MODE = 1;
+
+    /*default*/ static final byte NONE = 0;
+
+    /*default*/ static final byte LEAF = 1;
+
+    /*default*/ static final byte CHILDREN = 2;
+
+    /*default*/ static final byte BRANCH_HASH = 3;
+
+    private volatile JMerkle tree;
+
+    public JMerkleSyncResponder(JMerkle tree) {
+        this.tree = tree;
+    }
+
+    public void setTree(JMerkle tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the request is malformed.
+     */
+    public byte[] respond(byte[] request) {
+        JMerkle tree = JMerkle.hashed(this.tree);
+        ByteBuffer in = ByteBuffer.wrap(request);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            if (in.get() != SYNC_VERSION)
+                throw new IllegalArgumentException("JMerkle sync request has unsupported version " + request[0] + ".");
+            MarshalOutput out = new MarshalOutput(Channels.newChannel(bytes));
+            out.put(SYNC_VERSION);
+            // an empty tree's hashing is moot; there are no hashes to compare:
+            out.put((byte) (tree == null ? JMerkleHashFunction.SHA1 : tree.hashFunction).id());
+            out.put((tree == null ? JMerkleHashScheme.CHILD_DIGEST : tree.scheme).version);
+
+            int numberOfPaths = V2NodeCursor.getVarint(in);
+            for (int i = 0; i < numberOfPaths; i++) {
+                byte mode = in.get();
+                byte[] path = new byte[in.get() & 0xFF];
+                in.get(path);
+                describe(find(tree, path), mode, out);
+            }
+            if (in.hasRemaining())
+                throw new IllegalArgumentException("JMerkle sync request has trailing bytes.");
+            out.flush();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("JMerkle sync request is truncated.");
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw:
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the node at the provided path; a leaf found along the way
+     *         stands for the whole path.
+     */
+    private static JMerkle find(JMerkle node, byte[] path) {
+        for (int i = 0; i < path.length && node != null && node.isBranch(); i++) {
+            node = ((Branch) node).child(Branch.index(path[i]));
+        }
+        return node;
+    }
+
+    private static void describe(JMerkle node, byte mode, MarshalOutput out) throws IOException {
+        if (node == null) {
+            out.put(NONE);
+        } else if (!node.isBranch()) {
+            out.put(LEAF);
+            describeLeaf((Leaf) node, out);
+        } else if (mode == HASH_MODE) {
+            out.put(BRANCH_HASH);
+            out.put(node.hashVal);
+        } else {
+            Branch branch = (Branch) node;
+            JMerkle[] children = branch.childNodes();
+            out.put(CHILDREN);
+            out.put((byte) (children.length - 1));
+            int position = 0;
+            for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+                JMerkle child = children[position++];
+                out.put(Branch.key(index));
+                out.put(child.isBranch() ? BRANCH_HASH : LEAF);
+                if (child.isBranch()) {
+                    out.put(child.hashVal);
+                } else {
+                    describeLeaf((Leaf) child, out);
+                }
+            }
+        }
+    }
+
+    private static void describeLeaf(Leaf leaf, MarshalOutput out) throws IOException {
+        out.put(leaf.hashVal);
+        out.putVarint(leaf.userKey.length);
+        out.put(leaf.userKey);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jmerkle.sequential.JMerkleMarshaler.MarshalOutput;
+
+/**
+ * Diffs a local JMerkle against a remote one served by a
+ * <code>JMerkleSyncResponder</code>, exchanging hashes rather than trees:
+ * the roots are compared first, then, a level at a time, the children of
+ * the branches that differ, with every such branch of a level (up to the
+ * batch size) requested in a single round trip. Subtrees with equal hashes
+ * are never requested, so the bytes exchanged follow the number of
+ * differences rather than the size of the trees. The keys are those of
+ * <code>JMerkle.diff(local, remote)</code>, though visited in the order
+ * they're found.
+ * <p/>
+ * The local JMerkle must not be altered during a diff.
+ */
+public class JMerkleSyncSession {
+
+    /**
+     * The number of branches requested per round trip by default.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final JMerkle local;
+
+    private final JMerkleTransport transport;
+
+    private final int batchSize;
+
+    private int rounds;
+
+    // the width of the remote's hashVals, as of the latest response:
+    private int width;
+
+    public JMerkleSyncSession(JMerkle local, JMerkleTransport transport) {
+        this(local, transport, DEFAULT_BATCH_SIZE);
+    }
+
+    public JMerkleSyncSession(JMerkle local, JMerkleTransport transport, int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        this.local = local;
+        this.transport = transport;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Provides the unique leaves between the local and remote JMerkles.
+     */
+    public List<String> diff() throws IOException {
+        JMerkle.StringCollector diff = new JMerkle.StringCollector();
+        diff(diff);
+        return diff.keys;
+    }
+
+    /**
+     * Passes the keys of the unique leaves between the local and remote
+     * JMerkles to the provided visitor as they're found; no further
+     * requests are made once the visitor declines to continue.
+     * 
+     * @return <code>true</code> if every unique leaf was visited;
+     *         <code>false</code> if the visitor stopped the diff.
+     */
+    public boolean diff(JMerkleVisitor visitor) throws IOException {
+        JMerkle.hashed(local);
+        try {
+            return diffRoots(visitor);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("JMerkle sync response is truncated.");
+        }
+    }
+
+    /**
+     * @return the number of round trips made so far.
+     */
+    public int rounds() {
+        return rounds;
+    }
+
+    private boolean diffRoots(JMerkleVisitor visitor) throws IOException {
+        Pending root = new Pending(new byte[0], local);
+        ByteBuffer response = exchange(Arrays.asList(root), JMerkleSyncResponder.HASH_MODE);
+        byte type = response.get();
+        if (type == JMerkleSyncResponder.BRANCH_HASH) {
+            byte[] hashVal = new byte[width];
+            response.get(hashVal);
+            if (local != null && local.isBranch() && Arrays.equals(hashVal, local.hashVal)) {
+                return true;
+            }
+            // the roots differ; go on to their children:
+            ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+            pending.add(root);
+            return diff(pending, visitor);
+        }
+        return diffNode(root, type, response, null, visitor);
+    }
+
+    private boolean diff(ArrayDeque<Pending> pending, JMerkleVisitor visitor) throws IOException {
+        List<Pending> batch = new ArrayList<Pending>();
+        while (!pending.isEmpty()) {
+            batch.clear();
+            while (batch.size() < batchSize && !pending.isEmpty()) {
+                batch.add(pending.poll());
+            }
+            ByteBuffer response = exchange(batch, JMerkleSyncResponder.CHILDREN_MODE);
+            for (Pending node : batch) {
+                if (!diffNode(node, response.get(), response, pending, visitor))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Diffs the local node with the remote one described (as per
+     * <code>JMerkleSyncResponder</code>) at the response's position,
+     * queueing the child branches that differ.
+     */
+    private boolean diffNode(Pending node, byte type, ByteBuffer response, ArrayDeque<Pending> pending, JMerkleVisitor visitor) {
+        int depth = node.path.length;
+        switch (type) {
+        case JMerkleSyncResponder.NONE:
+            return node.local == null || node.local.allKeysInternal(visitor);
+        case JMerkleSyncResponder.LEAF: {
+            byte[] hashVal = new byte[width];
+            response.get(hashVal);
+            byte[] userKey = new byte[V2NodeCursor.getVarint(response)];
+            response.get(userKey);
+            return diffLeaf(depth, node.local, userKey, hashVal, visitor);
+        }
+        case JMerkleSyncResponder.CHILDREN:
+            break;
+        default:
+            throw new IllegalStateException("JMerkle sync response has a node of unexpected type " + type + ".");
+        }
+
+        long[] remoteIndexes = new long[4];
+        int numberOfChildren = (response.get() & 0xFF) + 1;
+        for (int i = 0; i < numberOfChildren; i++) {
+            byte key = response.get();
+            int index = Branch.index(key);
+            remoteIndexes[index >>> 6] |= 1L << index;
+            byte childType = response.get();
+            byte[] hashVal = new byte[width];
+            response.get(hashVal);
+            JMerkle localChild = localChild(node.local, depth, index);
+            if (childType == JMerkleSyncResponder.LEAF) {
+                byte[] userKey = new byte[V2NodeCursor.getVarint(response)];
+                response.get(userKey);
+                if (!diffLeaf(depth + 1, localChild, userKey, hashVal, visitor))
+                    return false;
+            } else if (childType == JMerkleSyncResponder.BRANCH_HASH) {
+                if (localChild == null || !localChild.isBranch() || !Arrays.equals(hashVal, localChild.hashVal)) {
+                    byte[] path = Arrays.copyOf(node.path, depth + 1);
+                    path[depth] = key;
+                    pending.add(new Pending(path, localChild));
+                }
+            } else {
+                throw new IllegalStateException("JMerkle sync response has a child of unexpected type " + childType + ".");
+            }
+        }
+
+        // all of the keys of the local children the remote lacks:
+        if (node.local != null) {
+            if (node.local.isBranch()) {
+                Branch branch = (Branch) node.local;
+                for (int index = branch.nextIndex(0); index >= 0; index = branch.nextIndex(index + 1)) {
+                    if ((remoteIndexes[index >>> 6] & (1L << index)) == 0 && !branch.child(index).allKeysInternal(visitor))
+                        return false;
+                }
+            } else {
+                int index = localIndex((Leaf) node.local, depth);
+                if ((remoteIndexes[index >>> 6] & (1L << index)) == 0) {
+                    return visitor.visit(((Leaf) node.local).userKey);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the local node at the child index of the provided local node,
+     *         which resides at the provided depth; a leaf resides at the
+     *         index its key's digest leads to.
+     */
+    private static JMerkle localChild(JMerkle local, int depth, int index) {
+        if (local == null) {
+            return null;
+        } else if (local.isBranch()) {
+            return ((Branch) local).child(index);
+        } else {
+            return localIndex((Leaf) local, depth) == index ? local : null;
+        }
+    }
+
+    private static int localIndex(Leaf leaf, int depth) {
+        return Branch.index(leaf.keyDigest()[depth]);
+    }
+
+    /**
+     * Diffs the local node with the remote leaf residing at the same depth
+     * as per <code>JMerkle.diff</code>.
+     */
+    private static boolean diffLeaf(int depth, JMerkle local, byte[] userKey, byte[] hashVal, final JMerkleVisitor visitor) {
+        if (local == null) {
+            return visitor.visit(userKey);
+        }
+
+        if (!local.isBranch()) {
+            Leaf leaf = (Leaf) local;
+            if (Arrays.equals(leaf.userKey, userKey)) {
+                return Arrays.equals(leaf.hashVal, hashVal) || visitor.visit(userKey);
+            } else {
+                // if they're different, visit both:
+                return visitor.visit(leaf.userKey) && visitor.visit(userKey);
+            }
+        }
+
+        Branch branch = (Branch) local;
+        final Leaf branchLeaf = branch.lookupInternal(depth, userKey, JMerkle.keyDigest(branch.hashFunction, userKey));
+        if (branchLeaf == null) {
+            // the leaf's key isn't on the branch; it's unique as well:
+            return visitor.visit(userKey) && branch.allKeysInternal(visitor);
+        } else if (!Arrays.equals(branchLeaf.hashVal, hashVal)) {
+            // the branch's leaf differs; its key gets visited along with the rest:
+            return branch.allKeysInternal(visitor);
+        } else {
+            // identical leaves; visit all of the branch's keys but its leaf's:
+            return branch.allKeysInternal(new JMerkleVisitor() {
+                @Override
+                public boolean visit(byte[] key) {
+                    return key == branchLeaf.userKey || visitor.visit(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests the remote nodes at the paths of the provided nodes.
+     * 
+     * @return the response, positioned at the first node's description.
+     */
+    private ByteBuffer exchange(List<Pending> nodes, byte mode) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MarshalOutput out = new MarshalOutput(Channels.newChannel(bytes));
+        out.put(JMerkleSyncResponder.SYNC_VERSION);
+        out.putVarint(nodes.size());
+        for (Pending node : nodes) {
+            out.put(mode);
+            out.put((byte) node.path.length);
+            out.put(node.path);
+        }
+        out.flush();
+
+        ByteBuffer response = ByteBuffer.wrap(transport.exchange(bytes.toByteArray()));
+        rounds++;
+        byte syncVersion = response.get();
+        if (syncVersion != JMerkleSyncResponder.SYNC_VERSION)
+            throw new IllegalStateException("JMerkle sync response has unsupported version " + syncVersion + ".");
+        int hashFunctionId = response.get() & 0xFF;
+        JMerkleHashFunction hashFunction = JMerkleHashFunction.forId(hashFunctionId);
+        if (hashFunction == null)
+            throw new IllegalStateException("JMerkle sync response uses unregistered JMerkleHashFunction " + hashFunctionId + ".");
+        JMerkleHashScheme scheme = JMerkleHashScheme.forVersion(response.get());
+        // an empty remote has no hashes to compare:
+        boolean remoteEmpty = response.get(response.position()) == JMerkleSyncResponder.NONE && nodes.get(0).path.length == 0;
+        if (local != null && !remoteEmpty && (hashFunction != local.hashFunction || scheme != local.scheme))
+            throw new IllegalArgumentException("Remote JMerkle is hashed differently (JMerkleHashFunction " + hashFunctionId
+                    + ", JMerkleHashScheme " + scheme + ") from the local one (JMerkleHashFunction " + local.hashFunction.id()
+                    + ", JMerkleHashScheme " + local.scheme + ")");
+        width = hashFunction.width();
+        return response;
+    }
+
+    /**
+     * A branch (or what the remote has at its path) yet to be diffed.
+     */
+    private static final class Pending {
+
+        private final byte[] path;
+
+        // the local node at the path (null if there is none):
+        private final JMerkle local;
+
+        Pending(byte[] path, JMerkle local) {
+            this.path = path;
+            this.local = local;
+        }
+    }
+}
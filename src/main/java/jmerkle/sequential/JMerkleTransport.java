@@ -0,0 +1,33 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.io.IOException;
+
+/**
+ * Carries a <code>JMerkleSyncSession</code>'s requests to the
+ * <code>JMerkleSyncResponder</code> serving the remote tree and brings back
+ * its responses, e.g. over HTTP, a socket or a message queue.
+ */
+public interface JMerkleTransport {
+
+    /**
+     * Delivers the request to the remote <code>JMerkleSyncResponder.respond</code>.
+     * 
+     * @return the responder's response.
+     */
+    abstract byte[] exchange(byte[] request) throws IOException;
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+/**
+ * Receives leaf keys from <code>JMerkle.diff</code> and
+ * <code>JMerkle.allkeys</code> as the traversal encounters them, allowing a
+ * consumer to process (and to stop at) any number of keys without the
+ * traversal materializing them.
+ */
+public interface JMerkleVisitor {
+
+    /**
+     * @param key the leaf's key; the tree's own byte[], which must not be
+     *        modified. Keys altered in as Strings are UTF-8 encoded.
+     * @return <code>true</code> to continue the traversal; <code>false</code>
+     *         to stop it.
+     */
+    abstract boolean visit(byte[] key);
+}
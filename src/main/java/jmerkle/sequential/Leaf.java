@@ -15,9 +15,7 @@
  */
 package jmerkle.sequential;
 
-import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 public class Leaf extends JMerkle {
@@ -26,47 +24,58 @@ public class Leaf extends JMerkle {
 
     public byte[] userKey;
 
-    /*default*/ Leaf() {}
+    // lazily computed; see keyDigest():
+    /*default*/ transient byte[] keyDigest;
 
-    /*default*/ Leaf(byte[] userKey, byte[] hashVal) {
+    /*default*/ Leaf(JMerkleHashFunction hashFunction, JMerkleHashScheme scheme) {
+        this.hashFunction = hashFunction;
+        this.scheme = scheme;
+    }
+
+    /*default*/ Leaf(byte[] userKey, byte[] hashVal, JMerkleHashFunction hashFunction, JMerkleHashScheme scheme) {
         this.hashVal = hashVal;
         this.userKey = userKey;
+        this.hashFunction = hashFunction;
+        this.scheme = scheme;
     }
 
     @Override
-    JMerkle alterInternal(int offset, List<JMerkleAlterable> alterations) {
+    JMerkle alterInternal(int offset, List<Alteration> alterations, AlterContext context) {
 
-        JMerkle context = this;
+        // the leaf being altered; a copy of this one if it mustn't be altered in place:
+        Leaf leaf = this;
+        JMerkle result = this;
 
         if (alterations != null) {
 
             int alterationsSize = alterations.size();
 
             for (int i = 0; i < alterationsSize; i++) {
-                JMerkleAlterable alteration = alterations.get(i);
-
-                Serializable value = alteration.getValue();
-                String key = alteration.getKey();
-
-                if (this.userKey == null) {
-                    if(value != null) {
-                        // new tree:
-                        this.hashVal = JMerkle.hash(value);
-                        this.userKey = key.getBytes();
+                Alteration alteration = alterations.get(i);
+
+                if (leaf.hashVal == null) {
+                    if(alteration.hashVal != null) {
+                        // new tree (or a leaf deleted earlier in this batch):
+                        leaf = writable(leaf, context);
+                        leaf.hashVal = alteration.hashVal;
+                        leaf.userKey = alteration.key;
+                        leaf.keyDigest = alteration.keyDigest;
+                        result = leaf;
                     }
                 } else {
-                    if (Arrays.equals(this.userKey, key.getBytes())) {
+                    if (Arrays.equals(leaf.userKey, alteration.key)) {
                         // alteration to _this_ leaf:
-                        this.hashVal = JMerkle.hash(value);
+                        leaf = writable(leaf, context);
+                        leaf.hashVal = alteration.hashVal;
+                        result = leaf;
                     } else {
                         // create a new Branch:
-                        Branch branch = new Branch();
+                        Branch branch = new Branch(hashFunction, scheme);
                         // put the initial leaf (this one):
-                        byte offsetKey = JMerkle.hash(this.userKey)[offset];
-                        branch.children.put(offsetKey, this);
+                        branch.put(Branch.index(leaf.keyDigest()[offset]), leaf);
                         // insert the remaining alterations
-                        // and switch the context to the result:
-                        context = branch.alterInternal(offset, alterations.subList(i, alterationsSize));
+                        // and switch the result to the branch's:
+                        result = branch.alterInPlace(offset, alterations.subList(i, alterationsSize), context);
                         // inserting on the branch took care of everything;
                         // break out of the loop:
                         break;
@@ -75,7 +84,32 @@ public class Leaf extends JMerkle {
             }
         }
 
-        return context == null || context.hashVal == null ? null : context;
+        // (a branch's hashVal may be pending; see JMerkle.alterDeferred)
+        return result == leaf && leaf.hashVal == null ? null : result;
+    }
+
+    /**
+     * @return the provided leaf, or, if it's this one and the alter copies
+     *         the nodes it alters, a copy of it.
+     */
+    private Leaf writable(Leaf leaf, AlterContext context) {
+        if (leaf != this || !context.copiesPaths) {
+            return leaf;
+        }
+        Leaf copy = new Leaf(userKey, hashVal, hashFunction, scheme);
+        copy.keyDigest = keyDigest;
+        return copy;
+    }
+
+    /**
+     * @return the digest routing this leaf's userKey through the tree;
+     *         computed the first time it is needed and retained thereafter.
+     */
+    /*default*/ byte[] keyDigest() {
+        if (keyDigest == null) {
+            keyDigest = JMerkle.keyDigest(hashFunction, userKey);
+        }
+        return keyDigest;
     }
 
     @Override
@@ -84,12 +118,19 @@ public class Leaf extends JMerkle {
     }
 
     @Override
-    List<UserKeyWrapper> allKeysInternal() {
-        if (this.userKey == null) {
-            return Collections.emptyList();
-        } else {
-            return Collections.singletonList(new UserKeyWrapper(userKey));
-        }
+    void rehashInternal(JMerkleHashScheme scheme) {
+        // a leaf's hashVal is the hash of its value under every scheme:
+        this.scheme = scheme;
+    }
+
+    @Override
+    Leaf lookupInternal(int offset, byte[] key, byte[] keyDigest) {
+        return Arrays.equals(this.userKey, key) ? this : null;
+    }
+
+    @Override
+    boolean allKeysInternal(JMerkleVisitor visitor) {
+        return this.userKey == null || visitor.visit(userKey);
     }
     
     @Override
@@ -111,7 +152,7 @@ public class Leaf extends JMerkle {
 
     @Override
     int offset() {
-        // type (1) + hashVal (20) + userKey offset (4) + userKey.length
-        return 25 + userKey.length;
+        // type (1) + hashVal (width) + userKey offset (4) + userKey.length
+        return 5 + hashFunction.width() + userKey.length;
     }
 }
\ No newline at end of file
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.security.MessageDigest;
+
+/**
+ * Incremental MurmurHash3 (x64, 128 bit variant, seed 0). Output is h1
+ * followed by h2, each little-endian; i.e. the same bytes as the reference
+ * implementation's <code>MurmurHash3_x64_128</code>. <br/>
+ * <b>Not</b> suitable for cryptographic purposes.
+ */
+/*default*/ class Murmur3Digest extends MessageDigest {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final byte[] block = new byte[16];
+    private int blockLength;
+    private long length;
+    private long h1;
+    private long h2;
+
+    /*default*/ Murmur3Digest() {
+        super("MurmurHash3-128");
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 16;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        block[blockLength++] = input;
+        length++;
+        if (blockLength == 16) {
+            mix(block, 0);
+            blockLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        int end = offset + len;
+        length += len;
+        if (blockLength > 0) {
+            while (blockLength < 16 && offset < end) {
+                block[blockLength++] = input[offset++];
+            }
+            if (blockLength < 16) {
+                return;
+            }
+            mix(block, 0);
+            blockLength = 0;
+        }
+        while (end - offset >= 16) {
+            mix(input, offset);
+            offset += 16;
+        }
+        while (offset < end) {
+            block[blockLength++] = input[offset++];
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = blockLength - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (block[i] & 0xFFL);
+        }
+        for (int i = Math.min(blockLength, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (block[i] & 0xFFL);
+        }
+        if (blockLength > 8) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if (blockLength > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] digest = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            digest[i] = (byte) (h1 >>> (8 * i));
+            digest[i + 8] = (byte) (h2 >>> (8 * i));
+        }
+        engineReset();
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        blockLength = 0;
+        length = 0;
+        h1 = 0;
+        h2 = 0;
+    }
+
+    private void mix(byte[] bytes, int offset) {
+        long k1 = getLong(bytes, offset);
+        long k2 = getLong(bytes, offset + 8);
+
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFFL);
+        }
+        return value;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
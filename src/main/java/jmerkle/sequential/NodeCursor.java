@@ -0,0 +1,263 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a marshaled node in place. A cursor positioned on a child can be
+ * advanced across its siblings (in ascending key order) via
+ * <code>next()</code>; descending into a branch yields a new cursor on its
+ * first child. Implementations exist per marshal format version; the
+ * traversals here work against any of them.
+ */
+/*default*/ abstract class NodeCursor {
+
+    /*default*/ final JMerkleHashFunction hashFunction;
+
+    /*default*/ final JMerkleHashScheme scheme;
+
+    /*default*/ NodeCursor(JMerkleHashFunction hashFunction, JMerkleHashScheme scheme) {
+        this.hashFunction = hashFunction;
+        this.scheme = scheme;
+    }
+
+    /*default*/ abstract boolean isBranch();
+
+    /**
+     * @return the index (key + 128) this node resides under in its parent.
+     */
+    /*default*/ abstract int index();
+
+    /**
+     * Advances this cursor to the node's next sibling.
+     *
+     * @return <code>false</code> if there is none (the cursor is then
+     *         left where it was).
+     */
+    /*default*/ abstract boolean next();
+
+    /**
+     * @return a cursor on the first child of this branch.
+     */
+    /*default*/ abstract NodeCursor children();
+
+    /**
+     * @return a cursor on this node that stays put as this one moves on to
+     *         its siblings (and has none of its own).
+     */
+    /*default*/ abstract NodeCursor detach();
+
+    /**
+     * @return the (big-endian) buffer the cursor reads from.
+     */
+    /*default*/ abstract ByteBuffer buffer();
+
+    /**
+     * @return the position of the node's hashVal within its hashBuffer().
+     */
+    /*default*/ abstract int hashPosition();
+
+    /**
+     * @return the (big-endian) buffer holding the node's hashVal; the
+     *         cursor's buffer unless the hashVal isn't marshaled as such.
+     */
+    /*default*/ ByteBuffer hashBuffer() {
+        return buffer();
+    }
+
+    /**
+     * Compares the two nodes' hashVals where they lie in their buffers.
+     */
+    /*default*/ boolean hashEquals(NodeCursor that) {
+        int width = hashFunction.width();
+        if (width != that.hashFunction.width()) {
+            return false;
+        }
+        ByteBuffer b1 = hashBuffer();
+        ByteBuffer b2 = that.hashBuffer();
+        int p1 = hashPosition();
+        int p2 = that.hashPosition();
+        int i = 0;
+        // a long at a time (both buffers are big-endian):
+        for (; i + 8 <= width; i += 8) {
+            if (b1.getLong(p1 + i) != b2.getLong(p2 + i))
+                return false;
+        }
+        for (; i < width; i++) {
+            if (b1.get(p1 + i) != b2.get(p2 + i))
+                return false;
+        }
+        return true;
+    }
+
+    /*default*/ byte[] hashVal() {
+        ByteBuffer hashBuffer = hashBuffer();
+        int hashPosition = hashPosition();
+        byte[] hashVal = new byte[hashFunction.width()];
+        for (int i = 0; i < hashVal.length; i++) {
+            hashVal[i] = hashBuffer.get(hashPosition + i);
+        }
+        return hashVal;
+    }
+
+    /**
+     * @return the node's inclusive byte size as marshaled by format version
+     *         1, i.e. its <code>JMerkle.offset()</code>.
+     */
+    /*default*/ abstract int offset();
+
+    /*default*/ abstract byte[] userKey();
+
+    /*default*/ abstract boolean userKeyEquals(byte[] key);
+
+    /**
+     * Visits the keys of all of the leaves at or below this node, but for
+     * the one whose key equals the provided except (which may be null).
+     */
+    /*default*/ boolean allKeys(JMerkleVisitor visitor, byte[] except) {
+        if (!isBranch()) {
+            return (except != null && userKeyEquals(except)) || visitor.visit(userKey());
+        }
+        NodeCursor child = children();
+        do {
+            if (!child.allKeys(visitor, except))
+                return false;
+        } while (child.next());
+        return true;
+    }
+
+    /**
+     * Follows the provided key's digest from the provided offset (this
+     * node's depth) as per <code>JMerkle.lookupInternal</code>.
+     *
+     * @return a cursor on the leaf holding the key, or <code>null</code>
+     *         if there is none.
+     */
+    /*default*/ NodeCursor lookup(int offset, byte[] key, byte[] keyDigest) {
+        NodeCursor node = this;
+        while (node.isBranch()) {
+            int index = Branch.index(keyDigest[offset++]);
+            NodeCursor child = node.children();
+            while (child.index() < index && child.next());
+            if (child.index() != index)
+                return null;
+            node = child;
+        }
+        return node.userKeyEquals(key) ? node : null;
+    }
+
+    /**
+     * Diffs the two nodes residing at the provided offset (depth) of their
+     * respective trees; keys are visited in the same order as
+     * <code>JMerkle.diff</code> visits them.
+     */
+    /*default*/ static boolean diff(int offset, NodeCursor c1, NodeCursor c2, JMerkleVisitor visitor) {
+        if (c1.isBranch()) {
+            if (c2.isBranch()) {
+                return diffBranches(offset, c1, c2, visitor);
+            } else {
+                return diffLeaf(offset, c2, c1, visitor);
+            }
+        } else {
+            if (c2.isBranch()) {
+                return diffLeaf(offset, c1, c2, visitor);
+            } else {
+                byte[] thatUserKey = c2.userKey();
+                if (c1.userKeyEquals(thatUserKey)) {
+                    return c1.hashEquals(c2) || visitor.visit(thatUserKey);
+                } else {
+                    // if they're different, visit both:
+                    return visitor.visit(c1.userKey()) && visitor.visit(thatUserKey);
+                }
+            }
+        }
+    }
+
+    private static boolean diffLeaf(int offset, NodeCursor leaf, NodeCursor branch, JMerkleVisitor visitor) {
+
+        byte[] userKey = leaf.userKey();
+        NodeCursor branchLeaf = branch.lookup(offset, userKey, JMerkle.keyDigest(leaf.hashFunction, userKey));
+
+        if (branchLeaf == null) {
+            // the leaf's key isn't on the branch; it's unique as well:
+            return visitor.visit(userKey) && branch.allKeys(visitor, null);
+        } else if (!branchLeaf.hashEquals(leaf)) {
+            // the branch's leaf differs; its key gets visited along with the rest:
+            return branch.allKeys(visitor, null);
+        } else {
+            // identical leaves; visit all of the branch's keys but the leaf's:
+            return branch.allKeys(visitor, userKey);
+        }
+    }
+
+    private static boolean diffBranches(int offset, NodeCursor b1, NodeCursor b2, JMerkleVisitor visitor) {
+        if (b1.hashEquals(b2)) {
+            return true;
+        }
+
+        // recursive diff on keys in common; both sets of children
+        // are in ascending key order, so merge them:
+        NodeCursor c1 = b1.children();
+        NodeCursor c2 = b2.children();
+        boolean more = true;
+        while (more) {
+            int index1 = c1.index();
+            int index2 = c2.index();
+            if (index1 == index2) {
+                if (!diff(offset + 1, c1, c2, visitor))
+                    return false;
+                more = c1.next() && c2.next();
+            } else if (index1 < index2) {
+                more = c1.next();
+            } else {
+                more = c2.next();
+            }
+        }
+
+        // all user keys on keys unique to b1, then on keys unique to b2:
+        return uniqueKeys(b1, b2, visitor) && uniqueKeys(b2, b1, visitor);
+    }
+
+    /**
+     * Visits all of the keys beneath the children of b1 whose keys b2 has
+     * no child for.
+     */
+    private static boolean uniqueKeys(NodeCursor b1, NodeCursor b2, JMerkleVisitor visitor) {
+        NodeCursor c1 = b1.children();
+        NodeCursor c2 = b2.children();
+        do {
+            int index1 = c1.index();
+            while (c2.index() < index1 && c2.next());
+            if (c2.index() != index1 && !c1.allKeys(visitor, null))
+                return false;
+        } while (c1.next());
+        return true;
+    }
+
+    /**
+     * @return the provided number of bytes at the provided position of the
+     *         cursor's buffer.
+     */
+    /*default*/ byte[] get(int from, int length) {
+        ByteBuffer buffer = buffer();
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads nodes of marshal format version 1 (and of headerless structures)
+ * via absolute gets on a big-endian view of the source buffer, whose content
+ * is neither copied nor repositioned. A node is laid out as
+ * <pre>
+ * type (1) | hashVal (width) | offset (4) | number of children (2) | (key (1) | child)...
+ * type (1) | hashVal (width) | userKey size (4) | userKey
+ * </pre>
+ * for a branch and a leaf, respectively; a branch's offset is its inclusive
+ * byte size, so a sibling is reached by skipping over the subtree before it.
+ * <code>JMerkleStore</code> files may also hold references, which stand in
+ * for a node written elsewhere in the file:
+ * <pre>
+ * type (2) | hashVal (width) | offset (4) | position of the node's type (8)
+ * </pre>
+ * where the hashVal and offset are those of the referenced node.
+ */
+/*default*/ final class V1NodeCursor extends NodeCursor {
+
+    /*default*/ static final byte REFERENCE = 2;
+
+    private final ByteBuffer buffer;
+
+    private final int width;
+
+    // position of the node's entry (its type byte) among its siblings:
+    private int entry;
+
+    // position of the node's type byte, once a reference is followed:
+    private int position;
+
+    // the node's index within its parent (-1 for the uppermost node):
+    private int index;
+
+    // the number of siblings after this node:
+    private int remaining;
+
+    /*default*/ V1NodeCursor(ByteBuffer buffer, int position, JMerkleHashFunction hashFunction, JMerkleHashScheme scheme) {
+        this(buffer, position, -1, 0, hashFunction, scheme);
+    }
+
+    private V1NodeCursor(ByteBuffer buffer, int entry, int index, int remaining, JMerkleHashFunction hashFunction,
+            JMerkleHashScheme scheme) {
+        super(hashFunction, scheme);
+        this.buffer = buffer;
+        this.width = hashFunction.width();
+        this.entry = entry;
+        this.position = resolve(entry);
+        this.index = index;
+        this.remaining = remaining;
+    }
+
+    @Override
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the position of the node's type byte within the buffer.
+     */
+    /*default*/ int position() {
+        return position;
+    }
+
+    private int resolve(int entry) {
+        int resolved = entry;
+        while (buffer.get(resolved) == REFERENCE) {
+            long referenced = buffer.getLong(resolved + 5 + width);
+            if (referenced < 0 || referenced >= resolved)
+                throw new IllegalStateException("Marshaled JMerkle binary references position " + referenced + " from "
+                        + resolved + " and is therefore corrupt.");
+            resolved = (int) referenced;
+        }
+        return resolved;
+    }
+
+    @Override
+    boolean isBranch() {
+        return buffer.get(position) != 0;
+    }
+
+    @Override
+    int index() {
+        return index;
+    }
+
+    @Override
+    boolean next() {
+        if (remaining == 0) {
+            return false;
+        }
+        // skip over the entry (which, if a reference, isn't its node's offset):
+        int keyPosition = entry + (buffer.get(entry) == REFERENCE ? 13 + width : offset());
+        int nextIndex = Branch.index(buffer.get(keyPosition));
+        if (nextIndex <= index)
+            throw new IllegalStateException("Marshaled JMerkle binary has out of order branch keys and is therefore corrupt.");
+        entry = keyPosition + 1;
+        position = resolve(entry);
+        index = nextIndex;
+        remaining--;
+        return true;
+    }
+
+    @Override
+    NodeCursor children() {
+        int numberOfChildren = buffer.getShort(position + 5 + width) & 0xFFFF;
+        if (numberOfChildren == 0)
+            throw new IllegalStateException("Marshaled JMerkle binary has a branch without children and is therefore corrupt.");
+        int keyPosition = position + 7 + width;
+        return new V1NodeCursor(buffer, keyPosition + 1, Branch.index(buffer.get(keyPosition)), numberOfChildren - 1,
+                hashFunction, scheme);
+    }
+
+    @Override
+    NodeCursor detach() {
+        return new V1NodeCursor(buffer, position, index, 0, hashFunction, scheme);
+    }
+
+    @Override
+    int hashPosition() {
+        return position + 1;
+    }
+
+    @Override
+    int offset() {
+        // a branch's offset and a leaf's userKey size share a position:
+        int size = buffer.getInt(position + 1 + width);
+        return isBranch() ? size : 5 + width + size;
+    }
+
+    @Override
+    byte[] userKey() {
+        return get(position + 5 + width, buffer.getInt(position + 1 + width));
+    }
+
+    @Override
+    boolean userKeyEquals(byte[] key) {
+        if (buffer.getInt(position + 1 + width) != key.length) {
+            return false;
+        }
+        int keyPosition = position + 5 + width;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(keyPosition + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+}
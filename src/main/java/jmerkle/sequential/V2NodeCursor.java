@@ -0,0 +1,355 @@
+/*
+ * Copyright 2011, Andrew Oswald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jmerkle.sequential;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Reads nodes of marshal format version 2 (see <code>JMerkleFormat.V2</code>)
+ * via absolute gets on a big-endian view of the source buffer. A node is
+ * laid out as
+ * <pre>
+ * tag (varint: size &lt;&lt; 1 | 1) | hashVal (width) | offset (varint) | number of children - 1 (1) | keys | [prefix] | child...
+ * tag (varint: userKey suffix size &lt;&lt; 1) | hashVal (width) | userKey suffix
+ * </pre>
+ * for a branch and a leaf, respectively. A branch's size is that of what
+ * follows its tag, so a sibling is reached by skipping over the subtree
+ * before it; its offset is its version 1 size (i.e. its
+ * <code>JMerkle.offset()</code>). Its keys are its children's indexes
+ * (key + 128), one byte each in ascending order, unless it has 32 or more
+ * children, in which case they're a 32 byte bitmap (index i being bit
+ * i &amp; 7 of byte i &gt;&gt; 3). Given shared prefixes, the prefix is
+ * the common prefix of its leaf children's userKeys as a size (varint)
+ * followed by its bytes, and each of its leaves only holds the rest of its
+ * userKey.
+ * <p/>
+ * Given compressed paths, a branch holding a single child (necessarily a
+ * branch), along with the single child branches below it, is laid out as
+ * <pre>
+ * tag (varint: size &lt;&lt; 1 | 1) | hashVal (width) | path length - 1 (varint) | 0 (1) | keys | [hashVals] | branch
+ * </pre>
+ * where the path's length is the number of single child branches, the keys
+ * are those of each one's child (one byte each) and the branch is the one
+ * the path leads to. The hashVals of the path's branches below the first
+ * are only marshaled under <code>JMerkleHashScheme.SERIALIZED</code>;
+ * otherwise they're recomputed, from the branch the path leads to up, when
+ * needed. The cursor presents each of the path's branches as a branch of
+ * its own.
+ */
+/*default*/ final class V2NodeCursor extends NodeCursor {
+
+    // a branch with this many children lists them as a bitmap:
+    /*default*/ static final int BITMAP_THRESHOLD = 32;
+
+    private final ByteBuffer buffer;
+
+    private final int width;
+
+    private final boolean sharedPrefixes;
+
+    private final boolean compressedPaths;
+
+    // the parent's userKey prefix (position and size), if any:
+    private final int prefixPosition;
+
+    private final int prefixSize;
+
+    // the position of the node's tag and of what follows it:
+    private int entry;
+
+    private int body;
+
+    private int tag;
+
+    // given a path (see above), its length and the cursor's branch along it:
+    private int pathLength;
+
+    private final int link;
+
+    // the hashVal of the cursor's branch along a path, once recomputed:
+    private ByteBuffer linkHashVal;
+
+    // the node's index within its parent (-1 for the uppermost node):
+    private int index;
+
+    // the parent's keys (one per child or a bitmap) and the node's among them:
+    private final int keysPosition;
+
+    private final boolean bitmap;
+
+    private int ordinal;
+
+    // the number of siblings after this node:
+    private int remaining;
+
+    /*default*/ V2NodeCursor(ByteBuffer buffer, int position, boolean sharedPrefixes, boolean compressedPaths,
+            JMerkleHashFunction hashFunction, JMerkleHashScheme scheme) {
+        this(buffer, position, sharedPrefixes, compressedPaths, 0, 0, 0, -1, 0, false, 0, hashFunction, scheme);
+    }
+
+    private V2NodeCursor(ByteBuffer buffer, int entry, boolean sharedPrefixes, boolean compressedPaths, int link,
+            int prefixPosition, int prefixSize, int index, int keysPosition, boolean bitmap, int remaining,
+            JMerkleHashFunction hashFunction, JMerkleHashScheme scheme) {
+        super(hashFunction, scheme);
+        this.buffer = buffer;
+        this.width = hashFunction.width();
+        this.sharedPrefixes = sharedPrefixes;
+        this.compressedPaths = compressedPaths;
+        this.link = link;
+        this.prefixPosition = prefixPosition;
+        this.prefixSize = prefixSize;
+        this.index = index;
+        this.keysPosition = keysPosition;
+        this.bitmap = bitmap;
+        this.remaining = remaining;
+        moveTo(entry);
+    }
+
+    private void moveTo(int entry) {
+        this.entry = entry;
+        this.tag = readVarint(buffer, entry);
+        this.body = entry + varintSize(tag);
+        this.pathLength = 0;
+        if (compressedPaths && isBranch()) {
+            int length = readVarint(buffer, body + width);
+            if (buffer.get(body + width + varintSize(length)) == 0) {
+                this.pathLength = length + 1;
+            }
+        }
+    }
+
+    /**
+     * @return the position of the keys of the path at the cursor's entry.
+     */
+    private int pathKeysPosition() {
+        return body + width + varintSize(pathLength - 1) + 1;
+    }
+
+    /**
+     * @return whether the hashVals of the path's branches below the first
+     *         are marshaled.
+     */
+    private boolean pathHashVals() {
+        return scheme == JMerkleHashScheme.SERIALIZED;
+    }
+
+    /**
+     * @return the position of the branch the path at the cursor's entry
+     *         leads to.
+     */
+    private int pathEndPosition() {
+        return pathKeysPosition() + pathLength + (pathHashVals() ? (pathLength - 1) * width : 0);
+    }
+
+    @Override
+    boolean isBranch() {
+        return (tag & 1) != 0;
+    }
+
+    @Override
+    int index() {
+        return index;
+    }
+
+    @Override
+    boolean next() {
+        if (remaining == 0) {
+            return false;
+        }
+        int size = tag >>> 1;
+        int nextIndex;
+        if (bitmap) {
+            nextIndex = nextIndex(buffer, keysPosition, index + 1);
+        } else {
+            nextIndex = buffer.get(keysPosition + ordinal + 1) & 0xFF;
+        }
+        if (nextIndex <= index)
+            throw new IllegalStateException("Marshaled JMerkle binary has out of order or missing branch keys and is therefore corrupt.");
+        moveTo(body + (isBranch() ? size : width + size));
+        index = nextIndex;
+        ordinal++;
+        remaining--;
+        return true;
+    }
+
+    @Override
+    NodeCursor children() {
+        if (pathLength != 0) {
+            int keysPosition = pathKeysPosition();
+            int childIndex = buffer.get(keysPosition + link) & 0xFF;
+            if (link + 1 < pathLength) {
+                // the path's next branch:
+                return new V2NodeCursor(buffer, entry, sharedPrefixes, compressedPaths, link + 1, 0, 0, childIndex, 0, false, 0,
+                        hashFunction, scheme);
+            }
+            return new V2NodeCursor(buffer, pathEndPosition(), sharedPrefixes, compressedPaths, 0, 0, 0, childIndex, 0, false, 0, hashFunction,
+                    scheme);
+        }
+        int position = body + width;
+        position += varintSize(readVarint(buffer, position));
+        int numberOfChildren = (buffer.get(position++) & 0xFF) + 1;
+        int keysPosition = position;
+        boolean bitmap = numberOfChildren >= BITMAP_THRESHOLD;
+        position += bitmap ? 32 : numberOfChildren;
+        int prefixSize = 0;
+        if (sharedPrefixes) {
+            prefixSize = readVarint(buffer, position);
+            position += varintSize(prefixSize);
+        }
+        int firstIndex = bitmap ? nextIndex(buffer, keysPosition, 0) : buffer.get(keysPosition) & 0xFF;
+        if (firstIndex < 0)
+            throw new IllegalStateException("Marshaled JMerkle binary has a branch without children and is therefore corrupt.");
+        return new V2NodeCursor(buffer, position + prefixSize, sharedPrefixes, compressedPaths, 0, position, prefixSize,
+                firstIndex, keysPosition, bitmap, numberOfChildren - 1, hashFunction, scheme);
+    }
+
+    @Override
+    NodeCursor detach() {
+        return new V2NodeCursor(buffer, entry, sharedPrefixes, compressedPaths, link, prefixPosition, prefixSize, index,
+                keysPosition, bitmap, 0, hashFunction, scheme);
+    }
+
+    @Override
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    @Override
+    int hashPosition() {
+        if (link == 0) {
+            return body;
+        }
+        return pathHashVals() ? pathKeysPosition() + pathLength + (link - 1) * width : 0;
+    }
+
+    @Override
+    ByteBuffer hashBuffer() {
+        if (link == 0 || pathHashVals()) {
+            return buffer;
+        }
+        if (linkHashVal == null) {
+            // digest the branches from the path's end up to this one, as per Branch.rehash():
+            int keysPosition = pathKeysPosition();
+            int end = pathEndPosition();
+            byte[] hashVal = get(end + varintSize(readVarint(buffer, end)), width);
+            for (int i = pathLength - 1; i >= link; i--) {
+                MessageDigest digest = hashFunction.digest();
+                digest.update(scheme.version);
+                Branch.digestChild(digest, Branch.key(buffer.get(keysPosition + i) & 0xFF), true, hashVal, null);
+                hashVal = digest.digest();
+            }
+            linkHashVal = ByteBuffer.wrap(hashVal);
+        }
+        return linkHashVal;
+    }
+
+    @Override
+    int offset() {
+        if (pathLength != 0) {
+            // the end's offset plus those of the path's branches from this one down, each holding a single key:
+            int end = pathEndPosition();
+            int endBody = end + varintSize(readVarint(buffer, end));
+            return readVarint(buffer, endBody + width) + (pathLength - link) * (8 + width);
+        }
+        return isBranch() ? readVarint(buffer, body + width) : 5 + width + prefixSize + (tag >>> 1);
+    }
+
+    @Override
+    byte[] userKey() {
+        int suffixSize = tag >>> 1;
+        byte[] userKey = new byte[prefixSize + suffixSize];
+        for (int i = 0; i < prefixSize; i++) {
+            userKey[i] = buffer.get(prefixPosition + i);
+        }
+        int suffixPosition = body + width;
+        for (int i = 0; i < suffixSize; i++) {
+            userKey[prefixSize + i] = buffer.get(suffixPosition + i);
+        }
+        return userKey;
+    }
+
+    @Override
+    boolean userKeyEquals(byte[] key) {
+        if (prefixSize + (tag >>> 1) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < prefixSize; i++) {
+            if (buffer.get(prefixPosition + i) != key[i])
+                return false;
+        }
+        int suffixPosition = body + width - prefixSize;
+        for (int i = prefixSize; i < key.length; i++) {
+            if (buffer.get(suffixPosition + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the lowest index at or above the provided one set in the
+     *         bitmap at the provided position, or -1 if there is none.
+     */
+    private static int nextIndex(ByteBuffer buffer, int bitmapPosition, int from) {
+        for (int index = from; index < 256; index++) {
+            int bits = buffer.get(bitmapPosition + (index >> 3)) & 0xFF;
+            if ((bits >>> (index & 7)) == 0) {
+                // nothing else in this byte:
+                index |= 7;
+            } else if ((bits & (1 << (index & 7))) != 0) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the unsigned LEB128 varint at the provided position.
+     */
+    /*default*/ static int readVarint(ByteBuffer buffer, int position) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get(position++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Marshaled JMerkle binary has a malformed varint and is therefore corrupt.");
+    }
+
+    /**
+     * Reads the unsigned LEB128 varint at the buffer's position, advancing
+     * past it.
+     */
+    /*default*/ static int getVarint(ByteBuffer buffer) {
+        int value = readVarint(buffer, buffer.position());
+        buffer.position(buffer.position() + varintSize(value));
+        return value;
+    }
+
+    /**
+     * @return the number of bytes the provided (unsigned) value takes as a
+     *         varint.
+     */
+    /*default*/ static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+}